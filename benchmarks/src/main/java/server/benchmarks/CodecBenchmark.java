@@ -0,0 +1,80 @@
+package server.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import server.io.messages.FrameFormat;
+import server.io.messages.Message;
+import server.io.messages.MessageHandler;
+import server.io.messages.MessagePool;
+import server.io.messages.MessageType;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+// How fast MessageHandler turns messages into bytes and back.
+// Run with -prof gc to check the buffer/pool paths really don't allocate
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+
+    // How many values are in the message (0 is a ping, 1 is a drive command, 16 is a chunk of sensor data)
+    @Param({"0", "1", "16"})
+    public int valueCount;
+
+    @Param({"LEGACY", "BINARY"})
+    public FrameFormat format;
+
+    private Message message;
+    private ByteBuffer out;
+    private ByteBuffer encoded;
+    private int encodedStart;
+    private int encodedEnd;
+    private MessagePool pool;
+
+    @Setup
+    public void setup() {
+        int[] values = new int[valueCount];
+        for (int i = 0; i < valueCount; i++) { values[i] = i * 7; }
+        message = MessageHandler.construct(MessageType.SEND_LEFT, values);
+        out = ByteBuffer.allocateDirect(1024);
+        pool = new MessagePool(4);
+
+        // One encoded message to decode over and over. For BINARY, skip past the length like the decoder does
+        encoded = ByteBuffer.allocateDirect(1024);
+        MessageHandler.encode(message, encoded, format, false);
+        encodedEnd = format == FrameFormat.LEGACY ? encoded.position() - 1 : encoded.position();
+        encodedStart = format == FrameFormat.LEGACY ? 0 : MessageHandler.varintLength(encodedEnd - 1);
+    }
+
+    // The original way: a new byte[] every time
+    @Benchmark
+    public byte[] encodeToArray() {
+        return MessageHandler.encode(message);
+    }
+
+    @Benchmark
+    public int encodeToBuffer() {
+        out.clear();
+        return MessageHandler.encode(message, out, format, false);
+    }
+
+    // The original way: a new Message (and int[]) every time
+    @Benchmark
+    public Message decodeNew() {
+        Message decoded = MessageHandler.construct(null);
+        MessageHandler.decodeInto(encoded, encodedStart, encodedEnd, decoded, format, false);
+        return decoded;
+    }
+
+    @Benchmark
+    public void decodePooled(Blackhole blackhole) {
+        Message decoded = pool.acquire(null);
+        MessageHandler.decodeInto(encoded, encodedStart, encodedEnd, decoded, format, false);
+        blackhole.consume(decoded.valueCount);
+        decoded.release();
+    }
+}
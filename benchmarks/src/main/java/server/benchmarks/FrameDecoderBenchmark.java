@@ -0,0 +1,93 @@
+package server.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import server.io.FrameDecoder;
+import server.io.messages.FrameFormat;
+import server.io.messages.Message;
+import server.io.messages.MessageHandler;
+import server.io.messages.MessagePool;
+import server.io.messages.MessageType;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+// How fast the receive path pulls messages out of a stream of bytes (what IO.receive does for every read).
+// The "socket" is just a chunk of memory holding a bunch of messages, so only the decoding is measured
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameDecoderBenchmark {
+
+    // How many messages are waiting each time we read
+    private static final int framesPerRead = 256;
+
+    @Param({"LEGACY", "BINARY"})
+    public FrameFormat format;
+
+    private FrameDecoder decoder;
+    private MemoryChannel channel;
+    private MessagePool pool;
+    private Blackhole blackhole;
+    private FrameDecoder.FrameConsumer consumer;
+
+    // A pretend socket that hands out the same bytes every time it's read
+    private static class MemoryChannel implements ReadableByteChannel {
+        private final ByteBuffer data;
+
+        MemoryChannel(ByteBuffer data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read(ByteBuffer destination) {
+            data.rewind();
+            int length = data.remaining();
+            destination.put(data);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {}
+    }
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        ByteBuffer data = ByteBuffer.allocateDirect(64 * 1024);
+        Message message = MessageHandler.construct(MessageType.SEND_LEFT, new int[]{12, 34, 56});
+        for (int i = 0; i < framesPerRead; i++) {
+            MessageHandler.encode(message, data, format, false);
+        }
+        data.flip();
+        channel = new MemoryChannel(data);
+        decoder = new FrameDecoder(64 * 1024);
+        decoder.setFormat(format);
+        pool = new MessagePool(4);
+        consumer = this::onFrame;
+    }
+
+    private void onFrame(ByteBuffer buffer, int start, int end) {
+        Message message = pool.acquire(null);
+        MessageHandler.decodeInto(buffer, start, end, message, format, false);
+        blackhole.consume(message.valueCount);
+        message.release();
+    }
+
+    // Each op is one read plus pulling out and decoding every message in it
+    @Benchmark
+    @OperationsPerInvocation(framesPerRead)
+    public int readAndDrain() throws Exception {
+        decoder.readFrom(channel);
+        return decoder.drain(consumer);
+    }
+}
@@ -0,0 +1,435 @@
+package server.benchmarks;
+
+import server.ConnectionHandler;
+import server.io.FrameDecoder;
+import server.io.messages.FrameFormat;
+import server.io.messages.Message;
+import server.io.messages.MessageHandler;
+import server.io.messages.MessagePool;
+import server.io.messages.MessageType;
+import server.metrics.LatencyHistogram;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// Pretends to be a whole fleet of bots, to see how many one server can handle.
+// Every bot connects, does the handshake, then sends pings and telemetry at the rates you pick.
+// All the bots run on one thread with a Selector, so the generator itself stays cheap.
+// Without --port it starts a server in this same process, so it can also measure the server's CPU and allocation.
+//
+//   java -cp benchmarks/target/benchmarks.jar server.benchmarks.LoadGenerator --bots=2000 --duration=30
+//
+// Options (all optional):
+//   --bots=N              how many bots (1000)
+//   --host=H --port=P     use a server that's already running instead of starting one
+//   --event-loop          the started server uses event loops instead of a thread per connection
+//   --duration=S          how long to run, in seconds (30)
+//   --connect-rate=N      most new connections per second, 0 for as fast as possible (0)
+//   --ping-rate=N         pings per second, per bot (1)
+//   --telemetry-rate=N    telemetry messages per second, per bot (10)
+//   --telemetry-type=N    the MessageType number telemetry is sent as (8, SEND_LEFT)
+//   --telemetry-values=N  how many values in each telemetry message (4)
+//   --binary              ask for BINARY frames in the handshake (--crc adds a CRC)
+//   --silent=F            this fraction of bots goes quiet after the handshake, so the server times them out (0)
+public class LoadGenerator {
+
+    // One fake bot
+    private static class Bot {
+        private final SocketChannel channel;
+        private final FrameDecoder decoder = new FrameDecoder(256, 64 * 1024);
+        // What's waiting to be written (non-blocking writes don't always take everything)
+        private final ByteBuffer out = ByteBuffer.allocate(1024);
+        private final boolean silent;
+        private long connectStarted;
+        private boolean connected;
+        private boolean accepted;
+        private boolean closed;
+        private FrameFormat format = FrameFormat.LEGACY;
+        private boolean crc;
+        private long nextPing;
+        private long nextTelemetry;
+        private long pingSentAt;
+        private long lastSent;
+
+        private Bot(SocketChannel channel, boolean silent) {
+            this.channel = channel;
+            this.silent = silent;
+        }
+    }
+
+    private int botCount = 1000;
+    private String host = "127.0.0.1";
+    private int port = 0;
+    private boolean eventLoop = false;
+    private int durationSeconds = 30;
+    private int connectRate = 0;
+    private double pingRate = 1;
+    private double telemetryRate = 10;
+    private MessageType telemetryType = MessageType.SEND_LEFT;
+    private int telemetryValues = 4;
+    private boolean binary = false;
+    private boolean useCrc = false;
+    private double silentFraction = 0;
+
+    private final List<Bot> bots = new ArrayList<>();
+    private Selector selector;
+    private final MessagePool messagePool = new MessagePool(4);
+    private final Message received = MessageHandler.construct(null);
+    private Bot current;
+
+    // Everything we measure
+    private final LatencyHistogram pingRoundTrip = new LatencyHistogram();
+    private final LatencyHistogram handshakeTime = new LatencyHistogram();
+    private final LatencyHistogram silentUntilDisconnect = new LatencyHistogram();
+    private long connectFailures;
+    private long handshakes;
+    private long firstConnect;
+    private long lastHandshake;
+    private long pingsSent;
+    private long telemetrySent;
+    private long messagesReceived;
+    private long disconnects;
+    private long silentDisconnects;
+
+    // Only used when the server runs in this process
+    private ServerSocketChannel serverSocket;
+    private ConnectionHandler connectionHandler;
+
+    public static void main(String[] args) throws IOException {
+        LoadGenerator generator = new LoadGenerator();
+        generator.parse(args);
+        generator.run();
+    }
+
+    private void parse(String[] args) {
+        for (String arg : args) {
+            String value = arg.contains("=") ? arg.substring(arg.indexOf('=') + 1) : "";
+            if (arg.startsWith("--bots=")) { botCount = Integer.parseInt(value); }
+            else if (arg.startsWith("--host=")) { host = value; }
+            else if (arg.startsWith("--port=")) { port = Integer.parseInt(value); }
+            else if (arg.equals("--event-loop")) { eventLoop = true; }
+            else if (arg.startsWith("--duration=")) { durationSeconds = Integer.parseInt(value); }
+            else if (arg.startsWith("--connect-rate=")) { connectRate = Integer.parseInt(value); }
+            else if (arg.startsWith("--ping-rate=")) { pingRate = Double.parseDouble(value); }
+            else if (arg.startsWith("--telemetry-rate=")) { telemetryRate = Double.parseDouble(value); }
+            else if (arg.startsWith("--telemetry-type=")) { telemetryType = MessageType.fromInt(Integer.parseInt(value)); }
+            else if (arg.startsWith("--telemetry-values=")) { telemetryValues = Integer.parseInt(value); }
+            else if (arg.equals("--binary")) { binary = true; }
+            else if (arg.equals("--crc")) { binary = true; useCrc = true; }
+            else if (arg.startsWith("--silent=")) { silentFraction = Double.parseDouble(value); }
+            else { throw new IllegalArgumentException("Unknown option " + arg); }
+        }
+        if (telemetryType == null) { throw new IllegalArgumentException("Unknown telemetry type"); }
+    }
+
+    private void run() throws IOException {
+        if (port == 0) { startServer(); }
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        selector = Selector.open();
+        ServerUsage usage = connectionHandler != null ? new ServerUsage() : null;
+
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+        long connectInterval = connectRate > 0 ? TimeUnit.SECONDS.toNanos(1) / connectRate : 0;
+        long nextConnect = start;
+        firstConnect = start;
+        int silentEvery = silentFraction > 0 ? (int) Math.max(1, Math.round(1 / silentFraction)) : 0;
+        while (true) {
+            long now = System.nanoTime();
+            if (now >= end) { break; }
+            // Open new connections, as fast as the connect rate allows
+            while (bots.size() < botCount && now >= nextConnect) {
+                connect(address, silentEvery > 0 && bots.size() % silentEvery == 0);
+                nextConnect = connectInterval == 0 ? now : nextConnect + connectInterval;
+            }
+            selector.select(1);
+            for (SelectionKey key : selector.selectedKeys()) {
+                ready((Bot) key.attachment(), key);
+            }
+            selector.selectedKeys().clear();
+            now = System.nanoTime();
+            for (Bot bot : bots) { tick(bot, now); }
+            if (now >= nextReport) {
+                nextReport += TimeUnit.SECONDS.toNanos(1);
+                progress(now - start);
+            }
+        }
+        report(System.nanoTime() - start, usage);
+        for (Bot bot : bots) { close(bot); }
+        if (connectionHandler != null) {
+            connectionHandler.close();
+            serverSocket.close();
+        }
+        System.exit(0);
+    }
+
+    // Starts a server in this process on any free port
+    private void startServer() throws IOException {
+        serverSocket = ServerSocketChannel.open();
+        // A big backlog, so a burst of connections doesn't get turned away before the server can accept them
+        serverSocket.bind(new InetSocketAddress(host, 0), 4096);
+        port = ((InetSocketAddress) serverSocket.getLocalAddress()).getPort();
+        connectionHandler = new ConnectionHandler(serverSocket);
+        connectionHandler.setTcpNoDelay(true);
+        if (eventLoop) {
+            connectionHandler.startEventLoops(Runtime.getRuntime().availableProcessors());
+        } else {
+            connectionHandler.startAccepting();
+        }
+    }
+
+    private void connect(InetSocketAddress address, boolean silent) {
+        try {
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Bot bot = new Bot(channel, silent);
+            bot.connectStarted = System.nanoTime();
+            bots.add(bot);
+            if (channel.connect(address)) {
+                connected(bot, channel.register(selector, SelectionKey.OP_READ, bot));
+            } else {
+                channel.register(selector, SelectionKey.OP_CONNECT, bot);
+            }
+        } catch (IOException e) {
+            connectFailures++;
+        }
+    }
+
+    private void ready(Bot bot, SelectionKey key) {
+        try {
+            if (key.isConnectable()) {
+                bot.channel.finishConnect();
+                key.interestOps(SelectionKey.OP_READ);
+                connected(bot, key);
+            }
+            if (key.isReadable()) {
+                if (bot.decoder.readFrom(bot.channel) < 0) {
+                    disconnected(bot);
+                    return;
+                }
+                current = bot;
+                bot.decoder.drain(this::onFrame);
+            }
+            if (key.isValid() && key.isWritable()) { write(bot); }
+        } catch (IOException e) {
+            if (!bot.connected) { connectFailures++; }
+            disconnected(bot);
+        }
+    }
+
+    private void connected(Bot bot, SelectionKey key) throws IOException {
+        bot.connected = true;
+        // Ask for the format we want, same as a real bot: [version, flags] for BINARY, nothing for LEGACY
+        Message request = messagePool.acquire(MessageType.HANDSHAKE_REQUEST);
+        if (binary) {
+            request.setValueCount(2);
+            request.values[0] = FrameFormat.BINARY_VERSION;
+            request.values[1] = useCrc ? FrameFormat.FLAG_CRC : 0;
+        }
+        send(bot, request);
+        request.release();
+    }
+
+    // Called by the decoder for each message the server sends this bot
+    private void onFrame(ByteBuffer buffer, int start, int end) {
+        Bot bot = current;
+        if (!MessageHandler.decodeInto(buffer, start, end, received, bot.decoder.getFormat(), bot.crc)) { return; }
+        messagesReceived++;
+        long now = System.nanoTime();
+        if (received.type == MessageType.HANDSHAKE_ACCEPTED && !bot.accepted) {
+            bot.accepted = true;
+            handshakes++;
+            lastHandshake = now;
+            handshakeTime.record(now - bot.connectStarted);
+            if (received.valueCount >= 1 && received.values[0] == FrameFormat.BINARY_VERSION) {
+                bot.format = FrameFormat.BINARY;
+                bot.crc = received.valueCount >= 2 && (received.values[1] & FrameFormat.FLAG_CRC) != 0;
+                bot.decoder.setFormat(FrameFormat.BINARY);
+            }
+            // Spread the bots out, so they don't all send at the exact same moment
+            long pingInterval = interval(pingRate);
+            long telemetryInterval = interval(telemetryRate);
+            bot.nextPing = pingInterval == Long.MAX_VALUE ? Long.MAX_VALUE : now + (long) (Math.random() * pingInterval);
+            bot.nextTelemetry = telemetryInterval == Long.MAX_VALUE ? Long.MAX_VALUE : now + (long) (Math.random() * telemetryInterval);
+            bot.lastSent = now;
+        } else if (received.type == MessageType.PING_RESPONDED && bot.pingSentAt != 0) {
+            pingRoundTrip.record(now - bot.pingSentAt);
+            bot.pingSentAt = 0;
+        } else if (received.type == MessageType.PING_REQUEST && !bot.silent) {
+            // The server is checking on us
+            Message response = messagePool.acquire(MessageType.PING_RESPONDED);
+            send(bot, response);
+            response.release();
+        }
+    }
+
+    // Sends whatever this bot is due to send
+    private void tick(Bot bot, long now) {
+        if (!bot.accepted || bot.closed || bot.silent) { return; }
+        if (now >= bot.nextPing) {
+            bot.nextPing += interval(pingRate);
+            // Only one ping out at a time, or the round trips get mixed up
+            if (bot.pingSentAt == 0) {
+                Message ping = messagePool.acquire(MessageType.PING_REQUEST);
+                bot.pingSentAt = now;
+                send(bot, ping);
+                ping.release();
+                pingsSent++;
+            }
+        }
+        if (now >= bot.nextTelemetry) {
+            bot.nextTelemetry += interval(telemetryRate);
+            Message telemetry = messagePool.acquire(telemetryType);
+            telemetry.setValueCount(telemetryValues);
+            // Kept under 59 (';'), which would end the frame early in LEGACY
+            for (int i = 0; i < telemetryValues; i++) { telemetry.values[i] = (int) (now >>> (i * 3)) & 0x1F; }
+            send(bot, telemetry);
+            telemetry.release();
+            telemetrySent++;
+        }
+    }
+
+    private static long interval(double rate) {
+        return rate <= 0 ? Long.MAX_VALUE : (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+    }
+
+    private void send(Bot bot, Message message) {
+        if (bot.closed) { return; }
+        if (bot.out.remaining() < MessageHandler.encodedLength(message, bot.format, bot.crc)) {
+            // The server isn't keeping up with this bot. Skip it, like a real bot with a full buffer would
+            return;
+        }
+        MessageHandler.encode(message, bot.out, bot.format, bot.crc);
+        bot.lastSent = System.nanoTime();
+        write(bot);
+    }
+
+    private void write(Bot bot) {
+        try {
+            bot.out.flip();
+            bot.channel.write(bot.out);
+            bot.out.compact();
+            SelectionKey key = bot.channel.keyFor(selector);
+            if (key != null && key.isValid()) {
+                key.interestOps(bot.out.position() > 0 ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            }
+        } catch (IOException e) {
+            disconnected(bot);
+        }
+    }
+
+    // The server hung up on this bot
+    private void disconnected(Bot bot) {
+        if (bot.closed) { return; }
+        disconnects++;
+        if (bot.silent && bot.accepted) {
+            silentDisconnects++;
+            silentUntilDisconnect.record(System.nanoTime() - bot.lastSent);
+        }
+        close(bot);
+    }
+
+    private void close(Bot bot) {
+        bot.closed = true;
+        try {
+            bot.channel.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+
+    private void progress(long elapsed) {
+        System.out.printf("%3ds  connected=%d handshaken=%d disconnects=%d pings=%d telemetry=%d  rtt p50=%.2fms p99=%.2fms%n",
+                TimeUnit.NANOSECONDS.toSeconds(elapsed), bots.size(), handshakes, disconnects, pingsSent, telemetrySent,
+                pingRoundTrip.getPercentileNanos(0.5) / 1e6, pingRoundTrip.getPercentileNanos(0.99) / 1e6);
+    }
+
+    private void report(long elapsed, ServerUsage usage) {
+        double seconds = elapsed / 1e9;
+        double acceptSeconds = Math.max(1e-9, (lastHandshake - firstConnect) / 1e9);
+        System.out.println();
+        System.out.println("Load test: " + botCount + " bots for " + durationSeconds + "s against " + host + ":" + port
+                + (connectionHandler != null ? (eventLoop ? " (in-process, event loops)" : " (in-process, threads)") : ""));
+        System.out.printf("  connections: %d handshaken, %d failed, %.0f accepted/s%n",
+                handshakes, connectFailures, handshakes / acceptSeconds);
+        System.out.println("  handshake:   " + handshakeTime.summary());
+        System.out.println("  ping rtt:    " + pingRoundTrip.summary());
+        System.out.printf("  sent:        %d pings, %d telemetry (%.0f messages/s); received %d (%.0f/s)%n",
+                pingsSent, telemetrySent, (pingsSent + telemetrySent) / seconds, messagesReceived, messagesReceived / seconds);
+        System.out.printf("  disconnects: %d (%.2f/s), %d of them silent bots timed out%n", disconnects, disconnects / seconds, silentDisconnects);
+        if (silentDisconnects > 0) {
+            System.out.println("  quiet until timed out: " + silentUntilDisconnect.summary());
+        }
+        if (usage != null) {
+            usage.report(seconds);
+            System.out.println("  server timeouts: " + connectionHandler.getMetrics().getTimeouts()
+                    + ", decode errors: " + connectionHandler.getMetrics().getDecodeErrors()
+                    + ", dropped: " + connectionHandler.getMetrics().getDropped());
+        }
+    }
+
+    // CPU and memory the server used. The generator's own thread is left out, so it's just the server
+    // (threads that finished during the run, like closed sessions' readers, aren't counted for allocation)
+    private static class ServerUsage {
+        private final com.sun.management.ThreadMXBean threads =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        private final com.sun.management.OperatingSystemMXBean os =
+                (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        private final long generatorThread = Thread.currentThread().getId();
+        private final long cpuStart;
+        private final long generatorCpuStart;
+        private final long allocatedStart;
+        private final long generatorAllocatedStart;
+        private final long gcCountStart;
+        private final long gcTimeStart;
+
+        private ServerUsage() {
+            cpuStart = os.getProcessCpuTime();
+            generatorCpuStart = threads.getCurrentThreadCpuTime();
+            allocatedStart = allocated();
+            generatorAllocatedStart = threads.getThreadAllocatedBytes(generatorThread);
+            gcCountStart = gcCount();
+            gcTimeStart = gcTime();
+        }
+
+        private long allocated() {
+            long total = 0;
+            for (long bytes : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+                if (bytes > 0) { total += bytes; }
+            }
+            return total;
+        }
+
+        private static long gcCount() {
+            return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionCount).sum();
+        }
+
+        private static long gcTime() {
+            return ManagementFactory.getGarbageCollectorMXBeans().stream().mapToLong(GarbageCollectorMXBean::getCollectionTime).sum();
+        }
+
+        private void report(double seconds) {
+            long generatorCpu = threads.getCurrentThreadCpuTime() - generatorCpuStart;
+            long serverCpu = os.getProcessCpuTime() - cpuStart - generatorCpu;
+            long generatorAllocated = threads.getThreadAllocatedBytes(generatorThread) - generatorAllocatedStart;
+            long serverAllocated = Math.max(0, allocated() - allocatedStart - generatorAllocated);
+            System.out.printf("  server cpu:  %.2f cores (%.1f%% of %d), generator %.2f cores%n",
+                    serverCpu / 1e9 / seconds, 100.0 * serverCpu / 1e9 / seconds / os.getAvailableProcessors(),
+                    os.getAvailableProcessors(), generatorCpu / 1e9 / seconds);
+            System.out.printf("  server allocation: %.1f MB/s (%.1f MB total); gc: %d collections, %dms%n",
+                    serverAllocated / 1e6 / seconds, serverAllocated / 1e6, gcCount() - gcCountStart, gcTime() - gcTimeStart);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package server.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import server.io.messages.MessageType;
+
+import java.util.concurrent.TimeUnit;
+
+// How fast a type byte turns back into a MessageType. Happens once for every message we receive
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageTypeBenchmark {
+
+    private int next;
+
+    // Cycles through every type (plus one that doesn't exist), so the JIT can't just remember the answer
+    @Benchmark
+    public MessageType fromInt() {
+        next = next == MessageType.count() ? 0 : next + 1;
+        return MessageType.fromInt(next);
+    }
+}
@@ -0,0 +1,68 @@
+package server.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import server.ConnectionHandler;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+// A full PING_REQUEST -> PING_RESPONDED trip through a real server over localhost.
+// SampleTime mode reports percentiles (p50, p99, p99.9...), which is what actually matters for driving
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RoundTripBenchmark {
+
+    // "threads" is a reader thread per connection, "eventLoop" is the selector mode
+    @Param({"threads", "eventLoop"})
+    public String mode;
+
+    private ServerSocketChannel serverSocket;
+    private ConnectionHandler connectionHandler;
+    private SocketChannel bot;
+    private final ByteBuffer ping = ByteBuffer.allocateDirect(2);
+    private final ByteBuffer pong = ByteBuffer.allocateDirect(2);
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        serverSocket = ServerSocketChannel.open();
+        // Port 0 lets the OS pick any free port
+        serverSocket.bind(new InetSocketAddress("127.0.0.1", 0));
+        connectionHandler = new ConnectionHandler(serverSocket);
+        connectionHandler.setTcpNoDelay(true);
+        if (mode.equals("eventLoop")) {
+            connectionHandler.startEventLoops(1);
+        } else {
+            connectionHandler.startAccepting();
+        }
+        bot = SocketChannel.open(serverSocket.getLocalAddress());
+        bot.socket().setTcpNoDelay(true);
+        while (connectionHandler.getSessionCount() == 0) { Thread.sleep(1); }
+        ping.put((byte) 2).put((byte) ';').flip();
+    }
+
+    @Benchmark
+    public int pingPong() throws IOException {
+        ping.rewind();
+        while (ping.hasRemaining()) { bot.write(ping); }
+        pong.clear();
+        while (pong.hasRemaining()) {
+            if (bot.read(pong) < 0) { throw new IOException("Server hung up"); }
+        }
+        return pong.get(0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        bot.close();
+        connectionHandler.close();
+        serverSocket.close();
+    }
+}
@@ -0,0 +1,137 @@
+package server.bridge;
+
+import org.junit.jupiter.api.Test;
+import server.io.messages.Message;
+import server.io.messages.MessageHandler;
+import server.io.messages.MessageType;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SharedRingTest {
+
+    private static final int capacity = 256;
+
+    // The VarHandles only work on direct buffers (like the real memory-mapped one).
+    // The ring starts a bit into the buffer, like it would after a file header
+    private static SharedRing newRing() {
+        return new SharedRing(ByteBuffer.allocateDirect(64 + SharedRing.sizeOf(capacity)), 64, capacity);
+    }
+
+    private static int[] valuesOf(Message message) {
+        int[] values = new int[message.valueCount];
+        System.arraycopy(message.values, 0, values, 0, message.valueCount);
+        return values;
+    }
+
+    @Test
+    void capacityHasToBeAPowerOfTwo() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(SharedRing.sizeOf(512));
+        assertThrows(IllegalArgumentException.class, () -> new SharedRing(buffer, 0, 300));
+        assertThrows(IllegalArgumentException.class, () -> new SharedRing(buffer, 0, 32));
+    }
+
+    @Test
+    void wrapsAroundManyTimesWithoutLosingAnything() {
+        SharedRing ring = newRing();
+        Message into = MessageHandler.construct(null);
+        List<int[]> received = new ArrayList<>();
+        List<Long> sequences = new ArrayList<>();
+        int sent = 0;
+        // Records of different sizes, in uneven batches, so they keep ending up not fitting at the end of the ring
+        for (int round = 0; round < 200; round++) {
+            for (int i = 0; i < 1 + round % 4; i++) {
+                int[] values = new int[1 + sent % 5];
+                for (int v = 0; v < values.length; v++) { values[v] = sent * 1000 + v; }
+                assertTrue(ring.offer(7, MessageHandler.construct(MessageType.SEND_WEAPON, values)));
+                sent++;
+            }
+            ring.poll(into, (sessionId, sequence, nanoTime, message) -> {
+                assertEquals(7, sessionId);
+                assertEquals(MessageType.SEND_WEAPON, message.type);
+                received.add(valuesOf(message));
+                sequences.add(sequence);
+            }, Integer.MAX_VALUE);
+            assertEquals(0, ring.getBacklog());
+        }
+        assertEquals(sent, received.size());
+        for (int n = 0; n < sent; n++) {
+            assertEquals(n, sequences.get(n));
+            int[] expected = new int[1 + n % 5];
+            for (int v = 0; v < expected.length; v++) { expected[v] = n * 1000 + v; }
+            assertArrayEquals(expected, received.get(n), "message " + n);
+        }
+    }
+
+    @Test
+    void fullRingRefusesAndTheSequenceShowsTheGap() {
+        SharedRing ring = newRing();
+        int accepted = 0;
+        while (ring.offer(1, MessageHandler.construct(MessageType.SEND_LEFT, new int[]{accepted}))) { accepted++; }
+        assertTrue(accepted > 0);
+        assertFalse(ring.offer(1, MessageHandler.construct(MessageType.SEND_LEFT, new int[]{-1})));
+        List<Long> sequences = new ArrayList<>();
+        int taken = ring.poll(MessageHandler.construct(null), (sessionId, sequence, nanoTime, message) -> sequences.add(sequence), Integer.MAX_VALUE);
+        assertEquals(accepted, taken);
+        // There's room again, and the next one's sequence skips the two that didn't fit
+        assertTrue(ring.offer(1, MessageHandler.construct(MessageType.SEND_LEFT, new int[]{0})));
+        ring.poll(MessageHandler.construct(null), (sessionId, sequence, nanoTime, message) -> sequences.add(sequence), 1);
+        assertEquals(accepted + 2, sequences.get(sequences.size() - 1));
+    }
+
+    @Test
+    void pollStopsAtTheLimit() {
+        SharedRing ring = newRing();
+        for (int i = 0; i < 3; i++) { ring.offer(1, MessageHandler.construct(MessageType.SEND_LEFT, new int[]{i})); }
+        List<Integer> values = new ArrayList<>();
+        assertEquals(2, ring.poll(MessageHandler.construct(null), (sessionId, sequence, nanoTime, message) -> values.add(message.values[0]), 2));
+        assertEquals(1, ring.poll(MessageHandler.construct(null), (sessionId, sequence, nanoTime, message) -> values.add(message.values[0]), 2));
+        assertEquals(List.of(0, 1, 2), values);
+    }
+
+    @Test
+    void concurrentProducersEachKeepTheirOrder() throws InterruptedException {
+        SharedRing ring = newRing();
+        int producers = 4;
+        int perProducer = 20000;
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            threads[p] = new Thread(() -> {
+                Message message = MessageHandler.construct(MessageType.SEND_WEAPON, new int[]{producer, 0});
+                for (int n = 0; n < perProducer; n++) {
+                    message.values[1] = n;
+                    // The ring is tiny, so it's full a lot. Wait for the reader
+                    while (!ring.offer(producer, message)) { Thread.yield(); }
+                }
+            }, "Producer" + p);
+            threads[p].start();
+        }
+        // What each producer's next value should be
+        int[] expected = new int[producers];
+        int[] total = new int[1];
+        Message into = MessageHandler.construct(null);
+        long deadline = System.nanoTime() + 30_000_000_000L;
+        while (total[0] < producers * perProducer && System.nanoTime() < deadline) {
+            int taken = ring.poll(into, (sessionId, sequence, nanoTime, message) -> {
+                int producer = message.values[0];
+                assertEquals(producer, sessionId);
+                assertEquals(expected[producer], message.values[1], "producer " + producer);
+                expected[producer]++;
+                total[0]++;
+            }, 64);
+            if (taken == 0) { Thread.yield(); }
+        }
+        for (Thread thread : threads) { thread.join(); }
+        assertEquals(producers * perProducer, total[0]);
+        for (int p = 0; p < producers; p++) { assertEquals(perProducer, expected[p]); }
+        assertEquals(0, ring.getBacklog());
+    }
+}
@@ -0,0 +1,39 @@
+package server.control;
+
+import org.junit.jupiter.api.Test;
+import server.io.messages.MessageType;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ControlStateTest {
+
+    @Test
+    void zeroAndNegativeValuesStillCountAsSet() {
+        ControlState state = new ControlState();
+        assertFalse(state.isSet(MessageType.SEND_LEFT));
+        state.set(MessageType.SEND_LEFT, 0);
+        assertTrue(state.isSet(MessageType.SEND_LEFT));
+        assertEquals(0, state.get(MessageType.SEND_LEFT));
+        for (int value : new int[]{-1, -100, Integer.MIN_VALUE, Integer.MAX_VALUE}) {
+            state.set(MessageType.SEND_LEFT, value);
+            long raw = state.getRaw(MessageType.SEND_LEFT.ordinal());
+            assertTrue(ControlState.isSet(raw));
+            assertEquals(value, ControlState.valueOf(raw));
+        }
+    }
+
+    @Test
+    void channelsDontAffectEachOtherAndClearForgets() {
+        ControlState state = new ControlState();
+        state.set(MessageType.SEND_LEFT, 100);
+        state.set(MessageType.SEND_RIGHT, -100);
+        assertEquals(100, state.get(MessageType.SEND_LEFT));
+        assertEquals(-100, state.get(MessageType.SEND_RIGHT));
+        state.clear(MessageType.SEND_LEFT);
+        assertFalse(state.isSet(MessageType.SEND_LEFT));
+        assertEquals(0, state.get(MessageType.SEND_LEFT));
+        assertTrue(state.isSet(MessageType.SEND_RIGHT));
+    }
+}
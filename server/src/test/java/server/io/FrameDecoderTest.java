@@ -0,0 +1,70 @@
+package server.io;
+
+import org.junit.jupiter.api.Test;
+import server.io.messages.FrameFormat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class FrameDecoderTest {
+
+    private static ReadableByteChannel channelOf(byte... bytes) {
+        return Channels.newChannel(new ByteArrayInputStream(bytes));
+    }
+
+    // Reads everything the channel has, and returns the length of each frame found
+    private static List<Integer> frames(FrameDecoder decoder, ReadableByteChannel channel) throws IOException {
+        List<Integer> lengths = new ArrayList<>();
+        while (decoder.readFrom(channel) >= 0) {
+            decoder.drain((buffer, start, end) -> lengths.add(end - start));
+        }
+        return lengths;
+    }
+
+    @Test
+    void findsLegacyFramesAndSkipsEmptyOnes() throws IOException {
+        FrameDecoder decoder = new FrameDecoder(16);
+        assertEquals(List.of(2, 1), frames(decoder, channelOf((byte) 8, (byte) 5, (byte) ';', (byte) ';', (byte) 2, (byte) ';')));
+    }
+
+    @Test
+    void binaryFrameGrowsTheBufferToFit() throws IOException {
+        FrameDecoder decoder = new FrameDecoder(4, 1024);
+        decoder.setFormat(FrameFormat.BINARY);
+        byte[] bytes = new byte[2 + 300];
+        // 300 as a varint
+        bytes[0] = (byte) 0xAC;
+        bytes[1] = 0x02;
+        assertEquals(List.of(300), frames(decoder, channelOf(bytes)));
+    }
+
+    @Test
+    void binaryLengthOverTheLimitThrows() {
+        FrameDecoder decoder = new FrameDecoder(8, 256);
+        decoder.setFormat(FrameFormat.BINARY);
+        // 255 fits on its own, but not once the 2 byte length in front of it is counted too
+        assertThrows(FrameDecoder.MalformedFrameException.class,
+                () -> frames(decoder, channelOf((byte) 0xFF, (byte) 0x01, (byte) 1)));
+    }
+
+    @Test
+    void binaryLengthLongerThanFiveBytesThrows() {
+        FrameDecoder decoder = new FrameDecoder(16);
+        decoder.setFormat(FrameFormat.BINARY);
+        assertThrows(FrameDecoder.MalformedFrameException.class, () -> frames(decoder,
+                channelOf((byte) 0x81, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x00)));
+    }
+
+    @Test
+    void legacyFrameThatNeverEndsThrows() {
+        FrameDecoder decoder = new FrameDecoder(8, 32);
+        assertThrows(FrameDecoder.MalformedFrameException.class, () -> frames(decoder, channelOf(new byte[64])));
+    }
+}
@@ -0,0 +1,42 @@
+package server.io;
+
+import org.junit.jupiter.api.Test;
+import server.ConnectionHandler;
+import server.timing.RttEstimator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IOTest {
+
+    // No socket and no threads: the pings only get queued, and the answers are handed straight to the IO
+    private final IO io = new IO(1, null, new ConnectionHandler(null));
+
+    @Test
+    void answerToARetriedPingIsntUsedForTheRoundTrip() throws InterruptedException {
+        RttEstimator rtt = io.getRtt();
+        io.sendPing();
+        Thread.sleep(5);
+        io.pingResponded();
+        assertTrue(rtt.hasSample());
+        long smoothed = rtt.getSmoothedNanos();
+
+        // The heartbeat gives up on a ping, backs off and sends another. There's no telling which one an answer
+        // is for, so it can't be trusted as a round trip (Karn's rule), and the backoff stays until one can be
+        io.sendPing();
+        rtt.backoff();
+        long backedOff = rtt.getTimeoutNanos(0, Long.MAX_VALUE);
+        io.sendPing();
+        Thread.sleep(50);
+        io.pingResponded();
+        assertEquals(smoothed, rtt.getSmoothedNanos());
+        assertEquals(backedOff, rtt.getTimeoutNanos(0, Long.MAX_VALUE));
+        assertEquals(0, io.getPingSentAt());
+
+        // A ping that only went out once is fine again
+        io.sendPing();
+        io.pingResponded();
+        assertTrue(rtt.getSmoothedNanos() != smoothed);
+        assertTrue(rtt.getTimeoutNanos(0, Long.MAX_VALUE) < backedOff);
+    }
+}
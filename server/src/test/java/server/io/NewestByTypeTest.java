@@ -0,0 +1,42 @@
+package server.io;
+
+import org.junit.jupiter.api.Test;
+import server.io.messages.MessageType;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class NewestByTypeTest {
+
+    @Test
+    void onlyANewerOneOfTheSameTypeMakesItStale() {
+        NewestByType newest = new NewestByType();
+        assertTrue(newest.offer(MessageType.SEND_LEFT, 5));
+        // Older than the SEND_LEFT, but it's the first SEND_WEAPON, so it still counts
+        assertTrue(newest.offer(MessageType.SEND_WEAPON, 3));
+        // An older SEND_LEFT shows up late, and a repeat of the one we have
+        assertFalse(newest.offer(MessageType.SEND_LEFT, 4));
+        assertFalse(newest.offer(MessageType.SEND_LEFT, 5));
+        assertTrue(newest.offer(MessageType.SEND_LEFT, 6));
+        assertFalse(newest.offer(MessageType.SEND_WEAPON, 2));
+        assertTrue(newest.offer(MessageType.SEND_WEAPON, 4));
+    }
+
+    @Test
+    void keepsWorkingWhenTheSequenceWrapsAround() {
+        NewestByType newest = new NewestByType();
+        assertTrue(newest.offer(MessageType.SEND_RIGHT, Integer.MAX_VALUE - 1));
+        assertTrue(newest.offer(MessageType.SEND_RIGHT, Integer.MAX_VALUE));
+        // The next one after MAX_VALUE is MIN_VALUE, which is newer
+        assertTrue(newest.offer(MessageType.SEND_RIGHT, Integer.MIN_VALUE));
+        assertFalse(newest.offer(MessageType.SEND_RIGHT, Integer.MAX_VALUE));
+    }
+
+    @Test
+    void theFirstOneOfATypeIsAlwaysNewest() {
+        NewestByType newest = new NewestByType();
+        // Even sequence 0, or a negative one
+        assertTrue(newest.offer(MessageType.SEND_LEFT, 0));
+        assertTrue(newest.offer(MessageType.SEND_RIGHT, -7));
+    }
+}
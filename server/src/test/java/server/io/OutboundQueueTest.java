@@ -0,0 +1,130 @@
+package server.io;
+
+import org.junit.jupiter.api.Test;
+import server.io.messages.Message;
+import server.io.messages.MessagePool;
+import server.io.messages.MessageType;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class OutboundQueueTest {
+
+    private final MessagePool pool = new MessagePool(16);
+
+    private Message message(MessageType type, int value) {
+        return pool.acquire(type, value);
+    }
+
+    @Test
+    void comesOutInOrder() {
+        OutboundQueue queue = new OutboundQueue(4);
+        // Enough laps to wrap around the ring a few times
+        for (int lap = 0; lap < 5; lap++) {
+            for (int i = 0; i < 4; i++) { assertTrue(queue.offer(message(MessageType.SEND_LEFT, lap * 4 + i))); }
+            for (int i = 0; i < 4; i++) { assertEquals(lap * 4 + i, queue.next().values[0]); }
+            assertNull(queue.next());
+            assertTrue(queue.isEmpty());
+        }
+    }
+
+    @Test
+    void coalescedTypeKeepsOnlyTheLatestInItsOriginalSpot() {
+        OutboundQueue queue = new OutboundQueue(8);
+        queue.setCoalescing(MessageType.SEND_LEFT, true);
+        Message first = message(MessageType.SEND_LEFT, 1);
+        queue.offer(first);
+        queue.offer(message(MessageType.DISABLE_WEAPON, 0));
+        queue.offer(message(MessageType.SEND_LEFT, 2));
+        // The replaced one went back to its pool (check before the next acquire hands it out again)
+        assertNull(first.type);
+        queue.offer(message(MessageType.SEND_LEFT, 3));
+
+        Message next = queue.next();
+        assertEquals(MessageType.SEND_LEFT, next.type);
+        assertEquals(3, next.values[0]);
+        assertEquals(MessageType.DISABLE_WEAPON, queue.next().type);
+        assertNull(queue.next());
+    }
+
+    @Test
+    void coalescedTypeGetsANewSpotOnceSent() {
+        OutboundQueue queue = new OutboundQueue(8);
+        queue.setCoalescing(MessageType.SEND_LEFT, true);
+        queue.offer(message(MessageType.SEND_LEFT, 1));
+        assertEquals(1, queue.next().values[0]);
+        queue.offer(message(MessageType.DISABLE_WEAPON, 0));
+        queue.offer(message(MessageType.SEND_LEFT, 2));
+        assertEquals(MessageType.DISABLE_WEAPON, queue.next().type);
+        assertEquals(2, queue.next().values[0]);
+    }
+
+    @Test
+    void fullRingRefusesAndReleases() {
+        OutboundQueue queue = new OutboundQueue(2);
+        assertTrue(queue.offer(message(MessageType.SEND_LEFT, 1)));
+        assertTrue(queue.offer(message(MessageType.SEND_LEFT, 2)));
+        Message refused = message(MessageType.SEND_LEFT, 3);
+        assertFalse(queue.offer(refused));
+        assertNull(refused.type);
+        // What was already in there is untouched
+        assertEquals(1, queue.next().values[0]);
+        assertTrue(queue.offer(message(MessageType.SEND_LEFT, 4)));
+        assertEquals(2, queue.next().values[0]);
+        assertEquals(4, queue.next().values[0]);
+    }
+
+    @Test
+    void fullRingRefusesANewCoalescedType() {
+        OutboundQueue queue = new OutboundQueue(1);
+        queue.setCoalescing(MessageType.SEND_RIGHT, true);
+        assertTrue(queue.offer(message(MessageType.SEND_LEFT, 1)));
+        Message refused = message(MessageType.SEND_RIGHT, 2);
+        assertFalse(queue.offer(refused));
+        assertNull(refused.type);
+        assertEquals(MessageType.SEND_LEFT, queue.next().type);
+        // The refused one left nothing behind
+        assertNull(queue.next());
+    }
+
+    @Test
+    void pendingCountsMessagesInTheWritersHands() {
+        OutboundQueue queue = new OutboundQueue(8);
+        queue.setCoalescing(MessageType.SEND_RIGHT, true);
+        queue.offer(message(MessageType.SEND_LEFT, 1));
+        queue.offer(message(MessageType.SEND_RIGHT, 2));
+        // Replaces the one waiting, so it's still just one
+        queue.offer(message(MessageType.SEND_RIGHT, 3));
+        assertEquals(2, queue.getPending());
+        Message first = queue.next();
+        // Taken out, but not written yet
+        assertEquals(2, queue.getPending());
+        queue.unpoll(first);
+        assertEquals(2, queue.getPending());
+        queue.next();
+        queue.done(1);
+        assertEquals(1, queue.getPending());
+        queue.next();
+        queue.done(1);
+        assertEquals(0, queue.getPending());
+        assertTrue(queue.isEmpty());
+        queue.offer(message(MessageType.SEND_LEFT, 4));
+        queue.clear();
+        assertEquals(0, queue.getPending());
+    }
+
+    @Test
+    void unpolledMessageComesOutFirst() {
+        OutboundQueue queue = new OutboundQueue(4);
+        queue.offer(message(MessageType.SEND_LEFT, 1));
+        queue.offer(message(MessageType.SEND_LEFT, 2));
+        Message first = queue.next();
+        queue.unpoll(first);
+        assertFalse(queue.isEmpty());
+        assertSame(first, queue.next());
+        assertEquals(2, queue.next().values[0]);
+    }
+}
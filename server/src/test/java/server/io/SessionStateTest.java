@@ -0,0 +1,64 @@
+package server.io;
+
+import org.junit.jupiter.api.Test;
+import server.ConnectionHandler;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SessionStateTest {
+
+    // No socket: these only look at the state
+    private final ConnectionHandler connectionHandler = new ConnectionHandler(null);
+
+    @Test
+    void onlyTheOpenStatesAreOpen() {
+        assertTrue(SessionState.CONNECTING.isOpen());
+        assertTrue(SessionState.HANDSHAKEN.isOpen());
+        assertTrue(SessionState.ACTIVE.isOpen());
+        assertFalse(SessionState.CLOSING.isOpen());
+        assertFalse(SessionState.CLOSED.isOpen());
+    }
+
+    @Test
+    void exactlyOneCloserWinsARace() throws InterruptedException {
+        for (int round = 0; round < 200; round++) {
+            IO io = new IO(round, null, connectionHandler);
+            AtomicInteger winners = new AtomicInteger();
+            CountDownLatch go = new CountDownLatch(1);
+            Thread[] threads = new Thread[4];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread(() -> {
+                    try {
+                        go.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (io.beginClose()) { winners.incrementAndGet(); }
+                });
+                threads[i].start();
+            }
+            go.countDown();
+            for (Thread thread : threads) { thread.join(); }
+            assertEquals(1, winners.get());
+            assertEquals(SessionState.CLOSING, io.getState());
+        }
+    }
+
+    @Test
+    void closedStaysClosed() {
+        IO io = new IO(1, null, connectionHandler);
+        assertEquals(SessionState.CONNECTING, io.getState());
+        io.disconnect();
+        assertEquals(SessionState.CLOSED, io.getState());
+        assertFalse(io.isOpen());
+        assertFalse(io.beginClose());
+        // A second disconnect is harmless
+        io.disconnect();
+        assertEquals(SessionState.CLOSED, io.getState());
+    }
+}
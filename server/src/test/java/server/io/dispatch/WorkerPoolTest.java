@@ -0,0 +1,143 @@
+package server.io.dispatch;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import server.ConnectionHandler;
+import server.io.IO;
+import server.io.messages.Message;
+import server.io.messages.MessageHandler;
+import server.io.messages.MessageType;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WorkerPoolTest {
+
+    // Nothing here touches a socket, the sessions are just something to hand the handlers
+    private final ConnectionHandler connectionHandler = new ConnectionHandler(null);
+    private WorkerPool pool;
+
+    @AfterEach
+    void stopPool() {
+        if (pool != null) { pool.stop(); }
+    }
+
+    private IO session(int sessionId) {
+        return new IO(sessionId, null, connectionHandler);
+    }
+
+    private static Message left(int value) {
+        return MessageHandler.construct(MessageType.SEND_LEFT, new int[]{value});
+    }
+
+    // Submits count messages for each session, taking turns between them, and checks every session
+    // got all of its own back in the order they were sent
+    private void checkOrder(Backpressure backpressure, int queueSize, int count) throws InterruptedException {
+        pool = new WorkerPool("TestPool", 3, queueSize);
+        pool.start();
+        IO[] sessions = {session(1), session(2), session(3), session(4), session(5)};
+        Map<Integer, List<Integer>> seen = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(sessions.length * count);
+        FrameHandler handler = (io, message) -> {
+            seen.computeIfAbsent(io.getSessionId(), id -> new CopyOnWriteArrayList<>()).add(message.values[0]);
+            // Now and then a slow one, so the lanes back up
+            if (message.values[0] % 100 == 0) { Thread.yield(); }
+            done.countDown();
+        };
+        Message message = left(0);
+        for (int i = 0; i < count; i++) {
+            for (IO io : sessions) {
+                // The pool copies it, so the same one can be reused right away
+                message.values[0] = i;
+                assertTrue(pool.submit(io, message, handler, backpressure));
+            }
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        for (IO io : sessions) {
+            List<Integer> values = seen.get(io.getSessionId());
+            assertEquals(count, values.size());
+            for (int i = 0; i < count; i++) { assertEquals(i, values.get(i), "session " + io.getSessionId()); }
+        }
+        assertEquals(0, pool.getBacklog());
+    }
+
+    @Test
+    void eachSessionKeepsItsOrderThroughTheOverflow() throws InterruptedException {
+        // Tiny lanes, so most of it goes through the QUEUE overflow
+        checkOrder(Backpressure.QUEUE, 6, 5000);
+    }
+
+    @Test
+    void eachSessionKeepsItsOrderWhileBlocking() throws InterruptedException {
+        checkOrder(Backpressure.BLOCK, 6, 2000);
+    }
+
+    @Test
+    void dropRefusesOnceTheLaneIsFull() throws InterruptedException {
+        pool = new WorkerPool("TestPool", 1, 2);
+        pool.start();
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicInteger handled = new AtomicInteger();
+        FrameHandler stuck = (io, message) -> {
+            started.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            handled.incrementAndGet();
+        };
+        IO io = session(1);
+        assertTrue(pool.submit(io, left(0), stuck, Backpressure.DROP));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        // The worker's busy with the first one, so two fit in the lane and the third doesn't
+        assertTrue(pool.submit(io, left(1), stuck, Backpressure.DROP));
+        assertTrue(pool.submit(io, left(2), stuck, Backpressure.DROP));
+        assertFalse(pool.submit(io, left(3), stuck, Backpressure.DROP));
+        release.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (handled.get() < 3 && System.nanoTime() < deadline) { Thread.sleep(1); }
+        assertEquals(3, handled.get());
+    }
+
+    @Test
+    void stopThrowsOutWhatsWaitingAndTakesNothingMore() throws InterruptedException {
+        pool = new WorkerPool("TestPool", 1, 4);
+        pool.start();
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicInteger handled = new AtomicInteger();
+        FrameHandler handler = (io, message) -> {
+            started.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                // stop() interrupts the workers, this is what a handler that's waiting sees
+                Thread.currentThread().interrupt();
+            }
+            handled.incrementAndGet();
+        };
+        IO io = session(1);
+        assertTrue(pool.submit(io, left(0), handler, Backpressure.QUEUE));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        for (int i = 1; i <= 10; i++) { assertTrue(pool.submit(io, left(i), handler, Backpressure.QUEUE)); }
+        assertEquals(10, pool.getBacklog());
+        pool.stop();
+        assertEquals(0, pool.getBacklog());
+        assertFalse(pool.submit(io, left(11), handler, Backpressure.QUEUE));
+        release.countDown();
+        Thread.sleep(200);
+        // Only the one that was already running finished
+        assertEquals(1, handled.get());
+    }
+}
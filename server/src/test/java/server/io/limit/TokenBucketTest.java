@@ -0,0 +1,102 @@
+package server.io.limit;
+
+import org.junit.jupiter.api.Test;
+import server.io.messages.MessageType;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenBucketTest {
+
+    // 10 a second is one token every 100ms
+    private static final long tokenNanos = TimeUnit.MILLISECONDS.toNanos(100);
+
+    @Test
+    void allowsABurstThenRefuses() {
+        TokenBucket bucket = new TokenBucket(10, 3);
+        long now = System.nanoTime();
+        for (int i = 0; i < 3; i++) { assertTrue(bucket.tryAcquire(now), "token " + i); }
+        assertFalse(bucket.tryAcquire(now));
+        assertFalse(bucket.tryAcquire(now + tokenNanos / 2));
+    }
+
+    @Test
+    void refillsOneTokenAtATime() {
+        TokenBucket bucket = new TokenBucket(10, 3);
+        long now = System.nanoTime();
+        for (int i = 0; i < 3; i++) { bucket.tryAcquire(now); }
+        now += tokenNanos;
+        assertTrue(bucket.tryAcquire(now));
+        assertFalse(bucket.tryAcquire(now));
+        now += 2 * tokenNanos;
+        assertTrue(bucket.tryAcquire(now));
+        assertTrue(bucket.tryAcquire(now));
+        assertFalse(bucket.tryAcquire(now));
+    }
+
+    @Test
+    void doesntSaveUpMoreThanTheBurst() {
+        TokenBucket bucket = new TokenBucket(10, 3);
+        // Idle for a long time
+        long now = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        for (int i = 0; i < 3; i++) { assertTrue(bucket.tryAcquire(now)); }
+        assertFalse(bucket.tryAcquire(now));
+    }
+
+    @Test
+    void rejectsBadSettings() {
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(0, 3));
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(-1, 3));
+        assertThrows(IllegalArgumentException.class, () -> new TokenBucket(10, 0));
+    }
+
+    @Test
+    void refundGivesTheTokenBack() {
+        TokenBucket bucket = new TokenBucket(10, 2);
+        long now = System.nanoTime();
+        assertTrue(bucket.tryAcquire(now));
+        assertTrue(bucket.tryAcquire(now));
+        bucket.refund();
+        assertTrue(bucket.tryAcquire(now));
+        assertFalse(bucket.tryAcquire(now));
+    }
+
+    @Test
+    void sessionLimitDoesntUseUpTheTypesTokens() {
+        RateLimits limits = new RateLimits();
+        limits.setSessionLimit(10, 1);
+        // Pings refill slowly, so any taken by mistake would still be missing below
+        limits.setTypeLimit(MessageType.PING_REQUEST, 1, 2);
+        RateLimits.Limiter limiter = limits.newLimiter();
+        long now = System.nanoTime();
+        assertEquals(RateLimits.Verdict.ALLOW, limiter.check(MessageType.SEND_LEFT, now));
+        // The session's out, so these are throttled by the session's limit, not the ping limit
+        for (int i = 0; i < 5; i++) { assertEquals(RateLimits.Verdict.THROTTLE, limiter.check(MessageType.PING_REQUEST, now)); }
+        // Once the session has a token again, the ping limit still has both of its own
+        now += TimeUnit.MILLISECONDS.toNanos(100);
+        assertEquals(RateLimits.Verdict.ALLOW, limiter.check(MessageType.PING_REQUEST, now));
+        now += TimeUnit.MILLISECONDS.toNanos(100);
+        assertEquals(RateLimits.Verdict.ALLOW, limiter.check(MessageType.PING_REQUEST, now));
+    }
+
+    @Test
+    void limiterThrottlesThenDisconnects() {
+        RateLimits limits = new RateLimits();
+        limits.setSessionLimit(10, 5);
+        limits.setTypeLimit(MessageType.PING_REQUEST, 1, 1);
+        limits.setDisconnectAfter(2);
+        RateLimits.Limiter limiter = limits.newLimiter();
+        long now = System.nanoTime();
+        assertEquals(RateLimits.Verdict.ALLOW, limiter.check(MessageType.PING_REQUEST, now));
+        // Over the type's limit, but that doesn't use up the session's tokens
+        assertEquals(RateLimits.Verdict.THROTTLE, limiter.check(MessageType.PING_REQUEST, now));
+        for (int i = 0; i < 4; i++) { assertEquals(RateLimits.Verdict.ALLOW, limiter.check(MessageType.SEND_LEFT, now)); }
+        assertEquals(RateLimits.Verdict.THROTTLE, limiter.check(MessageType.SEND_LEFT, now));
+        // That was the second strike, the third one is too many
+        assertEquals(RateLimits.Verdict.DISCONNECT, limiter.check(MessageType.SEND_LEFT, now));
+    }
+}
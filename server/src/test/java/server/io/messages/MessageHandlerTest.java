@@ -0,0 +1,113 @@
+package server.io.messages;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MessageHandlerTest {
+
+    // Encodes the message, checks the length matches what encodedLength promised, then decodes it back.
+    // The frame is put a few bytes into the buffer, like it would be in the middle of a read
+    private static Message roundTrip(Message message, FrameFormat format, boolean crc) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(64);
+        buffer.position(3);
+        int written = MessageHandler.encode(message, buffer, format, crc);
+        assertEquals(MessageHandler.encodedLength(message, format, crc), written);
+        int end = buffer.position();
+        Message decoded = MessageHandler.construct(null);
+        if (format == FrameFormat.LEGACY) {
+            // Everything but the ';'
+            assertTrue(MessageHandler.decodeInto(buffer, 3, end - 1, decoded, format, crc));
+        } else {
+            // Everything after the length
+            int start = 3;
+            while (buffer.get(start++) < 0) { }
+            assertTrue(MessageHandler.decodeInto(buffer, start, end, decoded, format, crc));
+        }
+        return decoded;
+    }
+
+    private static int[] valuesOf(Message message) {
+        int[] values = new int[message.valueCount];
+        System.arraycopy(message.values, 0, values, 0, message.valueCount);
+        return values;
+    }
+
+    @Test
+    void legacyRoundTrip() {
+        Message decoded = roundTrip(MessageHandler.construct(MessageType.SEND_LEFT, new int[]{12, 100}),
+                FrameFormat.LEGACY, false);
+        assertEquals(MessageType.SEND_LEFT, decoded.type);
+        assertArrayEquals(new int[]{12, 100}, valuesOf(decoded));
+    }
+
+    @Test
+    void binaryRoundTripKeepsFullInts() {
+        int[] values = {0, -1, 1, 63, -64, 300, -70000, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        for (boolean crc : new boolean[]{false, true}) {
+            Message decoded = roundTrip(MessageHandler.construct(MessageType.SEND_WEAPON, values), FrameFormat.BINARY, crc);
+            assertEquals(MessageType.SEND_WEAPON, decoded.type);
+            assertArrayEquals(values, valuesOf(decoded));
+        }
+    }
+
+    @Test
+    void binaryRoundTripWithNoValues() {
+        Message decoded = roundTrip(MessageHandler.construct(MessageType.PING_REQUEST), FrameFormat.BINARY, true);
+        assertEquals(MessageType.PING_REQUEST, decoded.type);
+        assertEquals(0, decoded.valueCount);
+    }
+
+    @Test
+    void crcCatchesAFlippedBit() {
+        ByteBuffer buffer = ByteBuffer.allocate(32);
+        int written = MessageHandler.encode(MessageHandler.construct(MessageType.SEND_LEFT, new int[]{42}), buffer,
+                FrameFormat.BINARY, true);
+        Message decoded = MessageHandler.construct(null);
+        assertTrue(MessageHandler.decodeInto(buffer, 1, written, decoded, FrameFormat.BINARY, true));
+        for (int i = 1; i < written; i++) {
+            buffer.put(i, (byte) (buffer.get(i) ^ 0x10));
+            assertFalse(MessageHandler.decodeInto(buffer, 1, written, decoded, FrameFormat.BINARY, true), "byte " + i);
+            buffer.put(i, (byte) (buffer.get(i) ^ 0x10));
+        }
+    }
+
+    @Test
+    void crcMatchesTheStandardCheckValue() {
+        // The CRC-32C of "123456789" is 0xE3069283. Also makes sure the buffer's position isn't moved
+        ByteBuffer buffer = ByteBuffer.allocateDirect(16);
+        buffer.position(2);
+        buffer.put("123456789".getBytes(StandardCharsets.US_ASCII));
+        buffer.position(5);
+        assertEquals(0xE3069283, MessageHandler.crc32c(buffer, 2, 11));
+        assertEquals(5, buffer.position());
+    }
+
+    @Test
+    void rejectsAVarintLongerThanFiveBytes() {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[]{4, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 1});
+        assertFalse(MessageHandler.decodeInto(buffer, 0, 7, MessageHandler.construct(null), FrameFormat.BINARY, false));
+    }
+
+    @Test
+    void rejectsAValueThatNeverEnds() {
+        // SEND_LEFT 1, then a byte saying "there's more" with nothing after it
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[]{8, 2, (byte) 0x80});
+        assertFalse(MessageHandler.decodeInto(buffer, 0, 3, MessageHandler.construct(null), FrameFormat.BINARY, false));
+    }
+
+    @Test
+    void unknownTypeDecodesAsNull() {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[]{(byte) 200, 2});
+        Message decoded = MessageHandler.construct(null);
+        assertTrue(MessageHandler.decodeInto(buffer, 0, 2, decoded, FrameFormat.BINARY, false));
+        assertNull(decoded.type);
+    }
+}
@@ -0,0 +1,53 @@
+package server.metrics;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LatencyHistogramTest {
+
+    @Test
+    void percentileIsNeverLowAndAtMostABucketHigh() {
+        // Small values get a bucket each, so they come back exactly. Bigger ones are at most 1/16 over
+        for (long value : new long[]{0, 1, 15, 16, 17, 100, 1_000, 123_456, 5_000_000, 987_654_321L, 1L << 39}) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(value);
+            long reported = histogram.getPercentileNanos(0.5);
+            assertTrue(reported >= value, value + " came back as " + reported);
+            assertTrue(reported <= value + value / 16, value + " came back as " + reported);
+            if (value < 16) { assertEquals(value, reported); }
+        }
+    }
+
+    @Test
+    void percentilesOfAKnownSpread() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        // 1ms to 1000ms, one of each
+        for (int ms = 1; ms <= 1000; ms++) { histogram.record(ms * 1_000_000L); }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500_500_000L, histogram.getMeanNanos());
+        assertBetween(500_000_000L, histogram.getPercentileNanos(0.5));
+        assertBetween(990_000_000L, histogram.getPercentileNanos(0.99));
+        assertBetween(1_000_000_000L, histogram.getPercentileNanos(1.0));
+        assertBetween(1_000_000L, histogram.getPercentileNanos(0.0));
+    }
+
+    @Test
+    void hugeAndNegativeTimesDontBreakIt() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE / 2);
+        assertEquals(0, histogram.getPercentileNanos(0.5));
+        // Everything past about 18 minutes shares the last bucket
+        assertTrue(histogram.getPercentileNanos(1.0) >= 1L << 40);
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getPercentileNanos(0.99));
+    }
+
+    private static void assertBetween(long expected, long reported) {
+        assertTrue(reported >= expected && reported <= expected + expected / 16,
+                "expected about " + expected + " but was " + reported);
+    }
+}
@@ -0,0 +1,114 @@
+package server.record;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import server.io.messages.Message;
+import server.io.messages.MessageHandler;
+import server.io.messages.MessageType;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RecorderTest {
+
+    // A small SEND_LEFT record takes 24 bytes (padded to 8), so this fits exactly 10 of them
+    private static final int segmentSize = Recorder.segmentHeaderSize + 10 * 24;
+
+    @TempDir
+    Path directory;
+
+    private static Message left(int value) {
+        return MessageHandler.construct(MessageType.SEND_LEFT, new int[]{value});
+    }
+
+    // The first value of every record, in the order the reader hands them out
+    private List<Integer> readValues() throws IOException {
+        List<Integer> values = new ArrayList<>();
+        new RecordingReader(directory).readAll((time, session, direction, message) -> values.add(message.values[0]));
+        return values;
+    }
+
+    private MappedByteBuffer mapSegment(long sequence) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory.resolve(RecordingReader.segmentName(sequence)),
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        }
+    }
+
+    @Test
+    void rollsOntoTheNextSegmentWhenFull() throws IOException {
+        Recorder recorder = new Recorder(directory, segmentSize, 4);
+        for (int i = 0; i < 15; i++) { recorder.record(i % 3, Recorder.Direction.IN, left(i)); }
+        assertEquals(15, recorder.getRecorded());
+        // The full one and the one it rolled onto (which was the spare)
+        assertEquals(2, RecordingReader.listSegments(directory).size());
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 15; i++) { expected.add(i); }
+        assertEquals(expected, readValues());
+    }
+
+    @Test
+    void dropsInsteadOfWaitingWhenTheSpareIsntReady() throws IOException {
+        // Never started, so nobody makes a new spare once the first one's used
+        Recorder recorder = new Recorder(directory, segmentSize, 4);
+        for (int i = 0; i < 21; i++) { recorder.record(1, Recorder.Direction.OUT, left(i)); }
+        assertEquals(20, recorder.getRecorded());
+        assertEquals(1, recorder.getDropped());
+        // However long it stays full, nothing that was already recorded gets written over
+        for (int i = 0; i < 100_000; i++) { recorder.record(1, Recorder.Direction.OUT, left(-1)); }
+        assertEquals(20, recorder.getRecorded());
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 20; i++) { expected.add(i); }
+        assertEquals(expected, readValues());
+    }
+
+    @Test
+    void readerFiltersBySessionAndTime() throws IOException {
+        Recorder recorder = new Recorder(directory, segmentSize, 4);
+        recorder.record(1, Recorder.Direction.IN, left(10));
+        recorder.record(2, Recorder.Direction.OUT, left(20));
+        long middle = recorder.now();
+        recorder.record(1, Recorder.Direction.OUT, left(11));
+        List<String> seen = new ArrayList<>();
+        new RecordingReader(directory).read(Long.MIN_VALUE, Long.MAX_VALUE, 1,
+                (time, session, direction, message) -> seen.add(direction + " " + message.values[0]));
+        assertEquals(List.of("IN 10", "OUT 11"), seen);
+        assertEquals(1, new RecordingReader(directory).read(middle, Long.MAX_VALUE, RecordingReader.allSessions,
+                (time, session, direction, message) -> { }));
+    }
+
+    @Test
+    void readerStopsAtARecordThatIsntPublishedYet() throws IOException {
+        Recorder recorder = new Recorder(directory, segmentSize, 4);
+        for (int i = 0; i < 12; i++) { recorder.record(1, Recorder.Direction.IN, left(i)); }
+        // Make the 4th record look like it's still being written: its space is taken, but its length isn't in yet.
+        // Everything after it in that segment is hidden until it's done, the next segment isn't
+        MappedByteBuffer segment = mapSegment(0);
+        int fourth = Recorder.segmentHeaderSize + 3 * 24;
+        int length = segment.getInt(fourth);
+        segment.putInt(fourth, 0);
+        assertEquals(List.of(0, 1, 2, 10, 11), readValues());
+        segment.putInt(fourth, length);
+        assertEquals(12, readValues().size());
+    }
+
+    @Test
+    void readerRefusesADamagedRecord() throws IOException {
+        Recorder recorder = new Recorder(directory, segmentSize, 4);
+        recorder.record(1, Recorder.Direction.IN, left(1));
+        MappedByteBuffer segment = mapSegment(0);
+        // The length says it runs way past the end of the segment
+        segment.putInt(Recorder.segmentHeaderSize, 1 << 20);
+        IOException error = assertThrows(IOException.class, this::readValues);
+        assertTrue(error.getMessage().contains("damaged"), error.getMessage());
+    }
+}
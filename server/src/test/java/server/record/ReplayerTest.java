@@ -0,0 +1,109 @@
+package server.record;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import server.io.messages.Message;
+import server.io.messages.MessageHandler;
+import server.io.messages.MessageType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ReplayerTest {
+
+    private final ServerSocket serverSocket = new ServerSocket(0);
+
+    ReplayerTest() throws IOException {
+    }
+
+    @AfterEach
+    void close() throws IOException {
+        serverSocket.close();
+    }
+
+    private static Message message(MessageType type, int... values) {
+        return MessageHandler.construct(type, values);
+    }
+
+    // Replays as the bot: sends the recorded handshake, while a pretend server answers with whatever
+    // it's given (in LEGACY) instead of what was recorded
+    private Replayer.Report replay(Message[] recorded, Message[] answers) throws InterruptedException {
+        List<Replayer.Record> records = new ArrayList<>();
+        long time = 1000;
+        records.add(new Replayer.Record(time, Recorder.Direction.IN, message(MessageType.HANDSHAKE_REQUEST)));
+        for (Message answer : recorded) { records.add(new Replayer.Record(++time, Recorder.Direction.OUT, answer)); }
+        Thread server = new Thread(() -> {
+            try (Socket socket = serverSocket.accept()) {
+                InputStream in = socket.getInputStream();
+                // The handshake
+                in.read(new byte[2]);
+                OutputStream out = socket.getOutputStream();
+                for (Message answer : answers) { out.write(MessageHandler.encode(answer)); }
+                // Hang on until the replayer's done with us
+                while (in.read() >= 0) { }
+            } catch (IOException e) {
+                // The test fails on the report instead
+            }
+        });
+        server.start();
+        Replayer.Report report = new Replayer(Replayer.Side.BOT, 0, 300).replay(Map.of(1, records),
+                id -> SocketChannel.open(new InetSocketAddress("localhost", serverSocket.getLocalPort())));
+        server.join(5000);
+        return report;
+    }
+
+    @Test
+    void aReplayThatGoesTheSameWayHasNoDivergences() throws InterruptedException {
+        Message[] recorded = {message(MessageType.HANDSHAKE_ACCEPTED), message(MessageType.SEND_LEFT, 1),
+                message(MessageType.SEND_RIGHT, 2)};
+        Replayer.Report report = replay(recorded, recorded);
+        assertEquals(1, report.sent);
+        assertEquals(3, report.received);
+        assertEquals(3, report.matched);
+        assertEquals(0, report.getDivergences());
+        assertNull(report.firstDivergence);
+    }
+
+    @Test
+    void linesBackUpAfterLostChangedAndExtraMessages() throws InterruptedException {
+        Message[] recorded = {message(MessageType.HANDSHAKE_ACCEPTED), message(MessageType.SEND_LEFT, 1),
+                message(MessageType.SEND_LEFT, 2), message(MessageType.SEND_LEFT, 3), message(MessageType.SEND_LEFT, 4),
+                message(MessageType.SEND_RIGHT, 5), message(MessageType.SEND_LEFT, 6)};
+        // 2 never comes, a weapon command nobody recorded shows up, and 4 comes back as 7
+        Message[] answers = {message(MessageType.HANDSHAKE_ACCEPTED), message(MessageType.SEND_LEFT, 1),
+                message(MessageType.SEND_LEFT, 3), message(MessageType.SEND_WEAPON, 9), message(MessageType.SEND_LEFT, 7),
+                message(MessageType.SEND_RIGHT, 5), message(MessageType.SEND_LEFT, 6)};
+        Replayer.Report report = replay(recorded, answers);
+        // Everything after each problem still lines up
+        assertEquals(5, report.matched);
+        assertEquals(1, report.missing);
+        assertEquals(1, report.extra);
+        assertEquals(1, report.diverged);
+        assertEquals(3, report.getDivergences());
+        // The first one was the lost message
+        assertTrue(report.firstDivergence.contains("never came"), report.firstDivergence);
+    }
+
+    @Test
+    void messagesThatNeverCameAtTheEndAreMissing() throws InterruptedException {
+        Message[] recorded = {message(MessageType.HANDSHAKE_ACCEPTED), message(MessageType.SEND_LEFT, 1),
+                message(MessageType.SEND_LEFT, 2), message(MessageType.SEND_LEFT, 3)};
+        Message[] answers = {message(MessageType.HANDSHAKE_ACCEPTED), message(MessageType.SEND_LEFT, 1)};
+        Replayer.Report report = replay(recorded, answers);
+        assertEquals(2, report.matched);
+        assertEquals(2, report.missing);
+        assertEquals(2, report.getDivergences());
+    }
+}
@@ -0,0 +1,99 @@
+package server.telemetry;
+
+import org.junit.jupiter.api.Test;
+import server.io.messages.Message;
+import server.io.messages.MessageHandler;
+import server.io.messages.MessageType;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TelemetryWindowTest {
+
+    @Test
+    void keepsOnlyTheNewestOnceItWraps() {
+        TelemetryWindow window = new TelemetryWindow(1000, 8, 1);
+        Message message = MessageHandler.construct(MessageType.SEND_LEFT, new int[]{0});
+        long now = System.nanoTime();
+        for (int i = 0; i < 20; i++) {
+            message.values[0] = i;
+            window.record(message, now);
+        }
+        WindowSnapshot snapshot = new WindowSnapshot();
+        window.snapshot(snapshot, now);
+        assertEquals(20, snapshot.sequence);
+        assertEquals(8, snapshot.count);
+        assertEquals(12, snapshot.min[0]);
+        assertEquals(19, snapshot.max[0]);
+        assertEquals(15.5, snapshot.mean[0], 1e-9);
+    }
+
+    @Test
+    void leavesOutSamplesOlderThanTheWindow() {
+        TelemetryWindow window = new TelemetryWindow(100, 16, 1);
+        Message message = MessageHandler.construct(MessageType.SEND_LEFT, new int[]{0});
+        long now = System.nanoTime();
+        long millis = 1_000_000L;
+        // 50 is from 200ms ago, the rest are inside the last 100ms
+        int[] values = {50, 1, 2, 3};
+        long[] ages = {200, 80, 40, 0};
+        for (int i = 0; i < values.length; i++) {
+            message.values[0] = values[i];
+            window.record(message, now - ages[i] * millis);
+        }
+        WindowSnapshot snapshot = new WindowSnapshot();
+        window.snapshot(snapshot, now);
+        assertEquals(3, snapshot.count);
+        assertEquals(1, snapshot.min[0]);
+        assertEquals(3, snapshot.max[0]);
+        assertEquals(2, snapshot.p50[0]);
+        assertEquals(now - 80 * millis, snapshot.oldestNanos);
+    }
+
+    @Test
+    void snapshotsNeverSeeHalfWrittenSamplesWithSeveralWriters() throws InterruptedException {
+        // A tiny ring, so the writers lap it constantly while snapshots copy it
+        TelemetryWindow window = new TelemetryWindow(100_000, 16, 2);
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong recorded = new AtomicLong();
+        Thread[] writers = new Thread[3];
+        for (int w = 0; w < writers.length; w++) {
+            int base = w * 1000;
+            writers[w] = new Thread(() -> {
+                Message message = MessageHandler.construct(MessageType.SEND_LEFT, new int[2]);
+                int i = 0;
+                while (running.get()) {
+                    // The two values always add up to a million, so a sample mixing two writes shows up
+                    int value = base + (i++ % 1000);
+                    message.values[0] = value;
+                    message.values[1] = 1_000_000 - value;
+                    window.record(message, System.nanoTime());
+                    recorded.incrementAndGet();
+                }
+            });
+            writers[w].start();
+        }
+        WindowSnapshot snapshot = new WindowSnapshot();
+        long snapshots = 0;
+        long deadline = System.nanoTime() + 1_000_000_000L;
+        try {
+            while (System.nanoTime() < deadline) {
+                window.snapshot(snapshot, System.nanoTime());
+                snapshots++;
+                if (snapshot.count == 0) { continue; }
+                assertTrue(snapshot.count <= 16);
+                assertEquals(1_000_000, snapshot.min[0] + snapshot.max[1], "snapshot " + snapshots);
+                assertEquals(1_000_000, snapshot.max[0] + snapshot.min[1], "snapshot " + snapshots);
+            }
+        } finally {
+            running.set(false);
+            for (Thread writer : writers) { writer.join(); }
+        }
+        assertTrue(snapshots > 0);
+        // Every sample claimed got published, none were lost between writers
+        assertEquals(recorded.get(), window.getSequence());
+    }
+}
@@ -0,0 +1,70 @@
+package server.timing;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RttEstimatorTest {
+
+    private static final long ms = 1_000_000L;
+    private static final long min = 1 * ms;
+    private static final long max = 10_000 * ms;
+
+    @Test
+    void usesTheMaxUntilThereIsASample() {
+        RttEstimator rtt = new RttEstimator();
+        assertFalse(rtt.hasSample());
+        assertEquals(max, rtt.getTimeoutNanos(min, max));
+    }
+
+    @Test
+    void firstSampleGivesThreeTimesTheRoundTrip() {
+        RttEstimator rtt = new RttEstimator();
+        rtt.update(40 * ms);
+        assertTrue(rtt.hasSample());
+        assertEquals(40 * ms, rtt.getSmoothedNanos());
+        assertEquals(20 * ms, rtt.getVariationNanos());
+        // smoothed + 4 * variation
+        assertEquals(120 * ms, rtt.getTimeoutNanos(min, max));
+    }
+
+    @Test
+    void steadySamplesTightenTheTimeout() {
+        RttEstimator rtt = new RttEstimator();
+        rtt.update(40 * ms);
+        long before = rtt.getTimeoutNanos(min, max);
+        for (int i = 0; i < 50; i++) { rtt.update(40 * ms); }
+        assertEquals(40 * ms, rtt.getSmoothedNanos());
+        assertTrue(rtt.getTimeoutNanos(min, max) < before);
+        assertTrue(rtt.getTimeoutNanos(min, max) >= 40 * ms);
+    }
+
+    @Test
+    void backoffDoublesUpToALimitAndASampleResetsIt() {
+        RttEstimator rtt = new RttEstimator();
+        rtt.update(10 * ms);
+        long base = rtt.getTimeoutNanos(min, max);
+        for (int i = 1; i <= 6; i++) {
+            rtt.backoff();
+            assertEquals(base << i, rtt.getTimeoutNanos(min, max));
+        }
+        // Stops doubling after 6
+        rtt.backoff();
+        assertEquals(base << 6, rtt.getTimeoutNanos(min, max));
+        // An answer that isn't in doubt ends the backoff
+        rtt.update(10 * ms);
+        assertTrue(rtt.getTimeoutNanos(min, max) <= base);
+    }
+
+    @Test
+    void timeoutStaysBetweenMinAndMax() {
+        RttEstimator rtt = new RttEstimator();
+        rtt.update(1000);
+        assertEquals(min, rtt.getTimeoutNanos(min, max));
+        rtt.update(5_000 * ms);
+        for (int i = 0; i < 6; i++) { rtt.backoff(); }
+        assertEquals(max, rtt.getTimeoutNanos(min, max));
+    }
+}
@@ -0,0 +1,79 @@
+package server.timing;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimingWheelTest {
+
+    // A small wheel with 1ms ticks, so anything over 8ms has to go around more than once
+    private final TimingWheel wheel = new TimingWheel("TestWheel", 1, 8);
+
+    @AfterEach
+    void stopWheel() {
+        wheel.stop();
+    }
+
+    @Test
+    void goesOffAfterSeveralRoundsNeverEarly() throws InterruptedException {
+        wheel.start();
+        CountDownLatch done = new CountDownLatch(1);
+        AtomicLong firedAfter = new AtomicLong();
+        long scheduledAt = System.nanoTime();
+        TimingWheel.Timeout timeout = wheel.schedule(t -> {
+            firedAfter.set(System.nanoTime() - scheduledAt);
+            done.countDown();
+        }, 30);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(firedAfter.get() >= TimeUnit.MILLISECONDS.toNanos(30), "went off after " + firedAfter.get() + "ns");
+        assertTrue(timeout.isExpired());
+        // Too late to cancel
+        assertFalse(timeout.cancel());
+    }
+
+    @Test
+    void timeoutsDueInTheSameSlotOnDifferentLapsGoOffInOrder() throws InterruptedException {
+        wheel.start();
+        CountDownLatch done = new CountDownLatch(3);
+        StringBuffer order = new StringBuffer();
+        // 3, 11 and 19 all land in the same slot of an 8 slot wheel
+        wheel.schedule(t -> { order.append('c'); done.countDown(); }, 19);
+        wheel.schedule(t -> { order.append('a'); done.countDown(); }, 3);
+        wheel.schedule(t -> { order.append('b'); done.countDown(); }, 11);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("abc", order.toString());
+    }
+
+    @Test
+    void cancelledTimeoutNeverGoesOff() throws InterruptedException {
+        wheel.start();
+        AtomicInteger fired = new AtomicInteger();
+        CountDownLatch later = new CountDownLatch(1);
+        TimingWheel.Timeout timeout = wheel.schedule(t -> fired.incrementAndGet(), 10);
+        assertTrue(timeout.cancel());
+        assertTrue(timeout.isCancelled());
+        // Already cancelled
+        assertFalse(timeout.cancel());
+        // Something due after it, to know the wheel got past it
+        wheel.schedule(t -> later.countDown(), 40);
+        assertTrue(later.await(5, TimeUnit.SECONDS));
+        assertEquals(0, fired.get());
+    }
+
+    @Test
+    void oneBrokenTaskDoesntStopTheRest() throws InterruptedException {
+        wheel.start();
+        CountDownLatch done = new CountDownLatch(1);
+        wheel.schedule(t -> { throw new IllegalStateException("broken on purpose"); }, 1);
+        wheel.schedule(t -> done.countDown(), 2);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,107 @@
+package server;
+
+import server.io.Threads;
+import server.log.Log;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+
+// Lets you type commands at the server without a window. Same commands as the console ('send 4', 'ping', ...),
+// read from the console and/or from a local port (so a script can do 'echo ping | nc localhost 61135').
+// The port only listens on this computer (localhost), so nobody on the network can drive the bots with it
+public class CommandChannel {
+
+    // Runs one command and returns what to print back (or null for nothing)
+    public interface CommandHandler {
+        String handle(String command);
+    }
+
+    private final CommandHandler handler;
+    private volatile boolean running = true;
+    private ServerSocket localSocket;
+
+    public CommandChannel(CommandHandler handler) {
+        this.handler = handler;
+    }
+
+    // Reads commands typed into the console, one per line
+    public void startConsole() {
+        Thread thread = new Thread(() -> {
+            try {
+                readCommands(new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8)), null);
+            } catch (IOException e) {
+                Log.error("Error reading console commands!", e);
+            }
+        }, "Console");
+        // Nobody typing shouldn't keep the program alive
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Accepts command connections on a local port. Each connection can send as many lines as it wants
+    public void startLocal(int port) throws IOException {
+        localSocket = new ServerSocket();
+        localSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        Log.info("Listening for commands on localhost:" + port);
+        Threads.start("Commands", () -> {
+            while (running) {
+                try {
+                    Socket client = localSocket.accept();
+                    Threads.start("Commands-" + client.getPort(), () -> serve(client));
+                } catch (IOException e) {
+                    if (running) { Log.error("Error accepting command connection!", e); }
+                }
+            }
+        });
+    }
+
+    private void serve(Socket client) {
+        try (client) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter out = new PrintWriter(client.getOutputStream(), true, StandardCharsets.UTF_8);
+            readCommands(in, out);
+        } catch (IOException e) {
+            Log.info("Command connection closed (" + e.getMessage() + ")");
+        }
+    }
+
+    // Runs every line until the input ends. Replies go to out if there is one, otherwise to the log
+    private void readCommands(BufferedReader in, PrintWriter out) throws IOException {
+        String line;
+        while (running && (line = in.readLine()) != null) {
+            line = line.trim();
+            if (line.isEmpty()) { continue; }
+            String reply;
+            try {
+                reply = handler.handle(line);
+            } catch (RuntimeException e) {
+                // A typo shouldn't kill the command channel
+                reply = "Bad command '" + line + "' (" + e + ")";
+            }
+            if (reply == null) { continue; }
+            if (out != null) {
+                out.println(reply);
+            } else {
+                Log.info(reply);
+            }
+        }
+    }
+
+    public void stop() {
+        running = false;
+        if (localSocket != null) {
+            try {
+                localSocket.close();
+            } catch (IOException e) {
+                Log.error("Error closing command port!", e);
+            }
+        }
+    }
+}
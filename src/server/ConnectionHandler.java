@@ -1,163 +1,545 @@
 package server;
 
+import server.bridge.AutonomyBridge;
+import server.io.EventLoop;
 import server.io.IO;
+import server.io.SessionState;
+import server.io.Threads;
+import server.io.UdpTransport;
+import server.io.dispatch.Dispatcher;
+import server.io.limit.RateLimits;
 import server.io.messages.Message;
+import server.io.messages.MessageHandler;
+import server.io.messages.MessageType;
+import server.log.Log;
+import server.metrics.Metrics;
+import server.metrics.SessionMetrics;
+import server.record.Recorder;
+import server.telemetry.TelemetryAggregator;
+import server.timing.TimingWheel;
 
-import javax.swing.*;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 
-// Takes in the connection socket as an argument. Handles all interactions with the bot
+// Takes in the server socket as an argument. Handles all interactions with the bots
+// (There can be lots of bots connected at once. Each one gets its own session)
 public class ConnectionHandler {
 
-    // This handles communicating directly with the bot
-    private static IO io;
     // A ServerSocket is like management overlooking a tunnel system
-    private final ServerSocket serverSocket;
-    // While a regular Socket is more like the tunnel itself
-    private Socket connectionSocket;
+    private final ServerSocketChannel serverSocket;
 
-    private boolean accepting;
-    private boolean connected;
+    // Every connected bot gets a session ID, and each session has its own IO (input/output)
+    // that handles communicating directly with that bot.
+    // A ConcurrentHashMap is safe to use from multiple threads at once (accept thread, IO threads, timer)
+    private final ConcurrentHashMap<Integer, IO> sessions;
+    // Session IDs just count up from 1, so each bot's ID is unique for the life of the server
+    private final AtomicInteger nextSessionId;
 
-    // We have a timeout so that if the bot stops
+    private volatile boolean accepting;
+    // Thread mode only. Sits in accept() waiting for bots
+    private Thread acceptThread;
+
+    // Only used in event loop mode. A few selector threads share all the connections between them
+    private EventLoop[] eventLoops;
+    // Used to hand new connections out to the loops in turn (round-robin)
+    private final AtomicInteger nextEventLoop;
+    // Set on the first loop's thread, cancelled from whoever stops accepting
+    private volatile SelectionKey acceptKey;
+
+    // We have a timeout so that if a bot stops
     // talking to the server, we know it disconnected
     private final int maxTimeout;
-    public long lastUpdate;
+    // Keeps track of when every session is due for a timeout check.
+    // It has its own thread, so it doesn't fight with the key listener (or need Swing at all)
+    private final TimingWheel timingWheel;
+    // Counts everything going in and out of every session
+    private final Metrics metrics = new Metrics();
+    // Decides what happens to every message the bots send. Add your own handlers to it before accepting
+    private final Dispatcher dispatcher = new Dispatcher();
+    // Saves every message in and out of every session to disk. Off (null) unless you set one
+    private Recorder recorder;
+    // Rolling stats of the values bots send us. Off (null) unless you set one
+    private TelemetryAggregator telemetry;
+    // Pings every session quickly and makes quiet ones safe. Off (null) unless you turn it on
+    private Heartbeat heartbeat;
+    // Sends drive/weapon commands over UDP to bots that ask for it. Off (null) unless you set one
+    private UdpTransport udpTransport;
+    // Shares everything the bots send with an autonomy program running separately. Off (null) unless you set one
+    private AutonomyBridge bridge;
+    // Most sessions at once. Anyone connecting past that is turned away. 0 means no limit
+    private volatile int maxSessions = 0;
+    // How fast each bot can send. Off (null) unless you set it
+    private RateLimits rateLimits;
+    // Sends one message to lots of bots at once (broadcasts and emergency stops)
+    private final FanOut fanOut = new FanOut();
+
+    // How new sessions write. Change these before accepting connections
+    // TCP_NODELAY sends small writes right away instead of waiting to bundle them (lower latency, more packets)
+    private boolean tcpNoDelay = false;
+    private IO.FlushPolicy flushPolicy = IO.FlushPolicy.IMMEDIATE;
+    // Whether drive/weapon commands that pile up get squashed down to just the latest one
+    private boolean coalesceCommands = false;
 
     // Initializes parameters
-    public ConnectionHandler(ServerSocket serverSocket) {
+    public ConnectionHandler(ServerSocketChannel serverSocket) {
         // If a bot doesn't communicate with a server
-        // for this (arbitrary) amount of time, it's unresponsive. Kill its connection
-        maxTimeout = 5000;
-        lastUpdate = 0;
+        // for this (arbitrary) amount of time, it's unresponsive. Kill its connection.
+        // The timeout is checked to within 10 milliseconds
+        this(serverSocket, 5000, 10);
+    }
+
+    // Same as above, but you pick the timeout and how precisely it's checked (the tick)
+    public ConnectionHandler(ServerSocketChannel serverSocket, int maxTimeout, int tickMillis) {
+        this.maxTimeout = maxTimeout;
+        // Enough slots that a full timeout fits in one trip around the wheel
+        timingWheel = new TimingWheel("TimingWheel", tickMillis, maxTimeout / tickMillis + 1);
+        dispatcher.registerDefaults();
         accepting = false;
-        connected = false;
+        sessions = new ConcurrentHashMap<>();
+        nextSessionId = new AtomicInteger(1);
+        nextEventLoop = new AtomicInteger(0);
         this.serverSocket = serverSocket;
     }
 
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    public void setFlushPolicy(IO.FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+    }
+
+    public void setCoalesceCommands(boolean coalesceCommands) {
+        this.coalesceCommands = coalesceCommands;
+    }
+
+    // Only sessions that connect after this get recorded, so set it before accepting
+    public void setRecorder(Recorder recorder) {
+        this.recorder = recorder;
+    }
+
+    public Recorder getRecorder() {
+        return recorder;
+    }
+
+    // Sends every message that doesn't have its own handler into the aggregator. Set it before accepting
+    public void setTelemetry(TelemetryAggregator telemetry) {
+        this.telemetry = telemetry;
+        dispatcher.registerFallback(telemetry);
+    }
+
+    public TelemetryAggregator getTelemetry() {
+        return telemetry;
+    }
+
+    // Set it before accepting. The ConnectionHandler starts and stops it along with everything else
+    public void setUdpTransport(UdpTransport udpTransport) {
+        this.udpTransport = udpTransport;
+    }
+
+    public UdpTransport getUdpTransport() {
+        return udpTransport;
+    }
+
+    public void setMaxSessions(int maxSessions) {
+        this.maxSessions = maxSessions;
+    }
+
+    // Set it before accepting (sessions pick it up when they start)
+    public void setRateLimits(RateLimits rateLimits) {
+        this.rateLimits = rateLimits;
+    }
+
+    public RateLimits getRateLimits() {
+        return rateLimits;
+    }
+
+    // Set it before accepting (sessions pick it up when they start)
+    public void setBridge(AutonomyBridge bridge) {
+        this.bridge = bridge;
+    }
+
+    public AutonomyBridge getBridge() {
+        return bridge;
+    }
+
+    // Turns on the heartbeat: every session gets pinged every intervalMillis, and one that goes quiet
+    // (for longer than its usual round trip allows) gets DISABLE_WEAPON and DISABLE_DRIVE right away.
+    // The bots have to answer PING_REQUEST (or keep sending other stuff) for this to work. 0 turns it off
+    public void setHeartbeat(long intervalMillis) {
+        if (intervalMillis <= 0) {
+            heartbeat = null;
+            return;
+        }
+        // At least 20ms extra for the answer, at most a second
+        heartbeat = new Heartbeat(timingWheel, intervalMillis, 20, 1000, new Heartbeat.Listener() {
+            @Override
+            public void onSuspect(IO io, long silentNanos) {
+                // Stop the weapon and the drive before anything else
+                io.sendSafeState();
+                metrics.suspect(io.getMetrics());
+                Log.info(String.format("Session %d went quiet for %.0fms, weapon and drive disabled",
+                        io.getSessionId(), silentNanos / 1e6));
+            }
+
+            @Override
+            public void onRecovered(IO io) {
+                // Turning things back on is up to the driver (or autonomy), not us
+                Log.info("Session " + io.getSessionId() + " is talking again");
+            }
+        });
+    }
+
     // Loop accepting connections
     public void startAccepting() {
+        // Starts checking the sessions for timeouts
+        startConnectionTimeout();
         // Loops trying to accept connections in a new thread.
         // This is so that the main thread can still run code at the same time
-        Thread acceptThread = new Thread(() -> {
-            accepting = true;
-            System.out.println("Accepting Connections");
+        accepting = true;
+        acceptThread = Threads.start("Accept", () -> {
+            Log.info("Accepting Connections");
             while (accepting) {
                 try {
                     // Will block the thread until something tries to connect
-                    Socket newSocket = serverSocket.accept();
-                    // After something connects, save its socket
-                    setConnectionSocket(newSocket);
-                    System.out.println("New Connection Accepted");
+                    SocketChannel newSocket = serverSocket.accept();
+                    if (!admit(newSocket)) { continue; }
+                    // After something connects, give it a session
+                    int sessionId = addSession(newSocket);
+                    Log.info("New Connection Accepted (session " + sessionId + ")");
                 } catch (IOException e) {
                     // The socket tends to error whenever it's
                     // closed since serverSocket.accept() is interrupted
-                    System.out.println("Connection Socket Closed");
+                    Log.info("Connection Socket Closed");
                 }
             }
         });
-        // After setting the code we want to run in a new thread, we
-        // have to actually start the thread
-        acceptThread.start();
+    }
+
+    // Event loop mode. Instead of an accept thread plus a thread per connection, a few
+    // event loops (usually one per core) handle accepting, reading and writing for every connection
+    public void startEventLoops(int loopCount) throws IOException {
+        startConnectionTimeout();
+        eventLoops = new EventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            eventLoops[i] = new EventLoop("EventLoop-" + i);
+            eventLoops[i].start();
+        }
+        // accept() can't block on a loop thread, or every connection on that loop would freeze
+        serverSocket.configureBlocking(false);
+        accepting = true;
+        // The first loop also watches for new connections
+        eventLoops[0].register(serverSocket, SelectionKey.OP_ACCEPT, key -> acceptReady(), key -> {
+            acceptKey = key;
+            // stopAccepting() may have run before the key existed
+            if (!accepting) { key.cancel(); }
+        });
+        Log.info("Accepting Connections (" + loopCount + " event loops)");
+    }
+
+    // Called on the event loop when there are connections waiting to be accepted
+    private void acceptReady() {
+        try {
+            SocketChannel newSocket;
+            // Grab all of them. accept() returns null once there's nobody left waiting
+            while (accepting && (newSocket = serverSocket.accept()) != null) {
+                if (!admit(newSocket)) { continue; }
+                int sessionId = addSession(newSocket);
+                Log.info("New Connection Accepted (session " + sessionId + ")");
+            }
+        } catch (IOException e) {
+            Log.error("Error accepting connection!", e);
+        }
     }
 
     // Pretty simple. Just makes the ConnectionHandler stop accepting new connections
     // (This will also prevent a reconnection if your bot disconnects)
     public void stopAccepting() {
         accepting = false;
+        if (acceptKey != null) { acceptKey.cancel(); }
+    }
+
+    // Stops accepting, and closes the server socket so a thread stuck in accept() wakes up and quits
+    public void closeServerSocket() {
+        stopAccepting();
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            Log.error("Error closing Server!", e);
+        }
+    }
+
+    // Every open session (for shutting down)
+    Collection<IO> getSessions() {
+        return sessions.values();
     }
 
-    // When a connection tries to join, this handles setting it up
-    public void setConnectionSocket(Socket newSocket) {
-        // When your bot disconnects and reconnects, it may not have had time to timeout yet.
-        // This will delete the old connection
-        closeCurrentConnectionSocket();
-        this.connectionSocket = newSocket;
+    // Stops the event loops (if there are any). Each one finishes what it's doing first
+    void stopEventLoops() {
+        if (eventLoops != null) {
+            for (EventLoop loop : eventLoops) { loop.stop(); }
+        }
+    }
+
+    // Waits for the accept thread and event loops to finish, up to the deadline (System.nanoTime).
+    // Returns how many are still running
+    int joinThreads(long deadlineNanos) throws InterruptedException {
+        int running = 0;
+        if (acceptThread != null) {
+            acceptThread.join(remainingMillis(deadlineNanos));
+            if (acceptThread.isAlive()) { running++; }
+        }
+        if (eventLoops != null) {
+            for (EventLoop loop : eventLoops) {
+                loop.join(remainingMillis(deadlineNanos));
+                if (loop.isAlive()) { running++; }
+            }
+        }
+        return running;
+    }
+
+    // join(0) waits forever, so never hand it a 0
+    private static long remainingMillis(long deadlineNanos) {
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime()));
+    }
+
+    // Turns the connection away if we already have as many sessions as we're allowed. Returns false (and closes it) if so
+    private boolean admit(SocketChannel newSocket) {
+        int max = maxSessions;
+        if (max <= 0 || sessions.size() < max) { return true; }
+        metrics.rejected();
+        Log.info("Turned away a connection (already at " + max + " sessions)");
+        try {
+            newSocket.close();
+        } catch (IOException e) {
+            Log.error("Error turning away a connection!", e);
+        }
+        return false;
+    }
+
+    // When a connection tries to join, this handles setting it up. Returns the new session's ID
+    public int addSession(SocketChannel newSocket) {
+        // If a bot disconnects and reconnects, it gets a brand-new session.
+        // Its old one will time out on its own
+        int sessionId = nextSessionId.getAndIncrement();
         // Each connection needs a new IO (input/output)
-        io = new IO(connectionSocket, this);
-        io.startReceive();
+        IO io = new IO(sessionId, newSocket, this);
+        io.setFlushPolicy(flushPolicy);
+        if (coalesceCommands) {
+            // Only the newest value of these matters. Older ones that haven't gone out yet are useless
+            io.setCoalescing(MessageType.SEND_LEFT, true);
+            io.setCoalescing(MessageType.SEND_RIGHT, true);
+            io.setCoalescing(MessageType.SEND_WEAPON, true);
+        }
+        try {
+            newSocket.socket().setTcpNoDelay(tcpNoDelay);
+        } catch (IOException e) {
+            Log.error("Error setting TCP_NODELAY for session " + sessionId + "!", e);
+        }
         // We update the timeout since the bot obviously isn't timed out if
         // it's making a new connection
-        updateTimeout();
-        connected = true;
-        // Starts the connection timeout timer.
-        // The previous one expired since 'connected' was set to false when connection was closed
-        startConnectionTimeout();
+        io.updateTimeout();
+        sessions.put(sessionId, io);
+        // Check back on it once it could possibly have timed out
+        timingWheel.schedule(timeout -> checkTimeout(io), maxTimeout);
+        if (heartbeat != null) { heartbeat.addSession(io); }
+        if (eventLoops != null) {
+            // Event loop mode. Hand the connection to the next loop in line
+            EventLoop loop = eventLoops[Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length)];
+            try {
+                io.register(loop);
+            } catch (IOException e) {
+                Log.error("Error registering session " + sessionId + "!", e);
+                closeSession(sessionId);
+            }
+        } else {
+            io.startReceive();
+        }
+        return sessionId;
+    }
+
+    // Closes the connection with one bot
+    public void closeSession(int sessionId) {
+        IO io = sessions.get(sessionId);
+        if (io != null) { closeSession(io); }
     }
 
-    // Closes the connection with the bot
-    public void closeCurrentConnectionSocket() {
-        connected = false;
-        // Always null check first if existence isn't guaranteed....
-        if (io != null) {
-            io.disconnect();
-            io = null;
+    // The timeout, the bot hanging up and shutdown can all try to close the same session at once.
+    // Only the one that wins the move to CLOSING actually closes it, nobody waits on a lock
+    private void closeSession(IO io) {
+        if (!io.beginClose()) { return; }
+        // Only remove this exact IO, in case the ID somehow points at something else now
+        sessions.remove(io.getSessionId(), io);
+        io.disconnect();
+        if (telemetry != null) { telemetry.removeSession(io.getSessionId()); }
+        metrics.sessionClosed();
+        Log.info("Session " + io.getSessionId() + " closed");
+    }
+
+    // Closes the connection with every bot
+    public void closeAllSessions() {
+        for (IO io : sessions.values()) {
+            closeSession(io);
         }
-        try {
-            // Make sure it's not null first, then make sure it isn't already closed
-            if (connectionSocket != null && !connectionSocket.isClosed()) {
-                // Only now is it safe to close it
-                connectionSocket.close();
-            }
-        } catch (IOException e) {
-            // If this errors then uhh, skill issue. Force it to null so the
-            // garbage collector (Java's memory management) will assassinate it
-            System.out.println("Error Closing Connection's Socket");
-            e.printStackTrace();
-            connectionSocket = null;
+    }
+
+    // Called by the IO when the bot closes its end of the connection
+    public void connectionLost(IO lostIO) {
+        closeSession(lostIO);
+    }
+
+    // The IDs of all the bots that are currently connected
+    public Set<Integer> getSessionIds() {
+        return sessions.keySet();
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    // Where a session is in its life, or null if there's no session with that ID (it's already gone)
+    public SessionState getSessionState(int sessionId) {
+        IO io = sessions.get(sessionId);
+        return io == null ? null : io.getState();
+    }
+
+    public Dispatcher getDispatcher() {
+        return dispatcher;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    // One session's own counters, or null if there's no session with that ID
+    public SessionMetrics getSessionMetrics(int sessionId) {
+        IO io = sessions.get(sessionId);
+        return io == null ? null : io.getMetrics();
+    }
+
+    // Pings every bot, to measure the round trip time (it shows up in the metrics)
+    public void pingAll() {
+        for (IO io : sessions.values()) {
+            io.sendPing();
         }
     }
 
-    // This will pass a message to the IO to be sent to the bot.
+    // This will pass a message to every connected bot.
     // Usually called when the upper level server needs to send something
     public void sendToIO(Message message) {
-        // IO CAN BE NULL!!! (Since we set it to that when the connection is closed)
-        // (It also starts null, and only changes when we get the first connection)
+        broadcast(message);
+    }
+
+    // Sends a message to just one bot. Returns false if there's no session with that ID.
+    // The write is handed to the bot's own writer, so a bot that isn't reading can't hold up the caller
+    public boolean sendToIO(int sessionId, Message message) {
+        // The session CAN BE MISSING!!! (Since it's removed when the connection is closed)
         // Always do a null check... Trust me, the errors are not fun
-        if (io != null) { io.send(message); }
+        IO io = sessions.get(sessionId);
+        if (io == null || !io.isOpen()) { return false; }
+        if (io.queue(message)) { io.scheduleFlush(); }
+        return true;
+    }
+
+    // Sends a message to every connected bot. It's only encoded once, however many bots there are (see FanOut)
+    public void broadcast(Message message) {
+        fanOut(message, (Predicate<IO>) null);
+    }
+
+    // Sends a message to every bot with this tag. Returns how many it was queued for
+    public int fanOut(Message message, String tag) {
+        return fanOut(message, io -> io.hasTag(tag));
     }
 
-    // Pretty simple. Just updates the timeout
-    // (usually called when the bot communicates with the server)
-    public void updateTimeout() {
-        lastUpdate = System.currentTimeMillis();
+    // Sends a message to every bot the filter lets through (null for all of them). Returns how many it was queued for
+    public int fanOut(Message message, Predicate<IO> filter) {
+        return fanOut.send(message, sessions.values(), filter);
     }
 
-    // A simple helper function that just calculates the amount of time since the last timeout update
-    private long timeSinceUpdate() {
-        return System.currentTimeMillis() - lastUpdate;
+    // Disables weapons, then drive, on every bot with the tag (or every bot, if the tag is null).
+    // Returns how many bots got both
+    public int emergencyStop(String tag) {
+        Predicate<IO> filter = tag == null ? null : io -> io.hasTag(tag);
+        fanOut(MessageHandler.construct(MessageType.DISABLE_WEAPON), filter);
+        return fanOut(MessageHandler.construct(MessageType.DISABLE_DRIVE), filter);
     }
 
-    // After a specified amount of time, check whether the bot has timed out
-    // and kill it if it has
+    // Puts a bot in a group, for fanOut. Returns false if there's no session with that ID
+    public boolean tagSession(int sessionId, String tag) {
+        IO io = sessions.get(sessionId);
+        if (io == null) { return false; }
+        io.addTag(tag);
+        return true;
+    }
+
+    public boolean untagSession(int sessionId, String tag) {
+        IO io = sessions.get(sessionId);
+        if (io == null) { return false; }
+        io.removeTag(tag);
+        return true;
+    }
+
+    // Queues a message for every bot without writing it yet. Call flushIO() once you've queued everything,
+    // so messages that go together (like SEND_LEFT and SEND_RIGHT) are written to each bot at once.
+    // Never waits: a bot whose queue is full just misses it (it shows up as dropped in the metrics)
+    public void queueToIO(Message message) {
+        for (IO io : sessions.values()) {
+            io.queue(message);
+        }
+    }
+
+    // Gets everything queued with queueToIO() written. Each bot's own writer does the writing (like FanOut),
+    // so this returns right away and one slow bot can't make the rest of the fleet late
+    public void flushIO() {
+        for (IO io : sessions.values()) {
+            io.scheduleFlush();
+        }
+    }
+
+    // Starts the timer that keeps track of the timeouts (and any worker pools the dispatcher has)
     private void startConnectionTimeout() {
-        // Checks the timeout every half a second (500 milliseconds)
-        Timer timer = new Timer(500, arg0 -> {
-            if (connected) {
-                if (timeSinceUpdate() > maxTimeout) {
-                    // KILL!!!
-                    closeCurrentConnectionSocket();
-                } else {
-                    // It's safe this time. Try to catch it slipping up next time
-                    startConnectionTimeout();
-                }
-            }
-        });
-        // This is a one-off timer. We manually recreate it (more stable this way)
-        timer.setRepeats(false);
-        // Make sure to actually start the timer
-        timer.start();
+        timingWheel.start();
+        dispatcher.start();
+        if (udpTransport != null) { udpTransport.start(); }
+    }
+
+    // Called by the timing wheel when a session might have timed out. Kills it if it has.
+    // If the bot talked to us since, we just check again when the new timeout would be up.
+    // (That way we don't have to touch the timer every single time a message comes in)
+    private void checkTimeout(IO io) {
+        // The session might have already closed on its own
+        if (!io.isOpen()) { return; }
+        long idle = io.timeSinceUpdate();
+        if (idle >= maxTimeout) {
+            // KILL!!!
+            Log.info("Session " + io.getSessionId() + " timed out");
+            metrics.timeout(io.getMetrics());
+            closeSession(io);
+        } else {
+            // It's safe this time. Try to catch it slipping up next time
+            timingWheel.schedule(timeout -> checkTimeout(io), maxTimeout - idle);
+        }
     }
 
     // Closes the ConnectionHandler.
     // Should only really be done if the server is closing
     public void close() {
         // Close all streams, remove references, then close the socket
-        System.out.println("Connection Closing");
+        Log.info("Connection Closing");
         stopAccepting();
-        closeCurrentConnectionSocket();
-        System.out.println("Connection Successfully Closed");
+        timingWheel.stop();
+        dispatcher.stop();
+        closeAllSessions();
+        if (udpTransport != null) { udpTransport.stop(); }
+        stopEventLoops();
+        Log.info("Connection Successfully Closed");
     }
 }
@@ -0,0 +1,28 @@
+package server;
+
+import server.io.IO;
+import server.io.messages.Message;
+import server.io.messages.SharedFrame;
+
+import java.util.function.Predicate;
+
+// Sends one message to lots of bots at once (like an emergency stop), without it taking longer just because some bot is slow.
+// The message is encoded once (SharedFrame) and that same frame goes into every bot's queue, no copies.
+// Nothing is written on the caller's thread: each bot's own writer (or its event loop) does the write,
+// so a bot that isn't reading only holds up itself, never the caller or the rest of the fleet
+public class FanOut {
+
+    // Sends the message to every session the filter lets through (null means all of them).
+    // Returns how many it was queued for. Anyone whose queue was full missed it (it shows up as dropped in the metrics)
+    public int send(Message message, Iterable<IO> sessions, Predicate<IO> filter) {
+        SharedFrame frame = message instanceof SharedFrame ? (SharedFrame) message : new SharedFrame(message);
+        int queued = 0;
+        for (IO io : sessions) {
+            if (filter != null && !filter.test(io)) { continue; }
+            if (!io.queueShared(frame)) { continue; }
+            queued++;
+            io.scheduleFlush();
+        }
+        return queued;
+    }
+}
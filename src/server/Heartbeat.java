@@ -0,0 +1,89 @@
+package server;
+
+import server.io.IO;
+import server.timing.TimingWheel;
+
+import java.util.concurrent.TimeUnit;
+
+// Notices a bot going quiet in tens of milliseconds, instead of waiting out the full timeout.
+// The server pings every session every interval, and keeps track of how long answers usually take (RttEstimator).
+// If we haven't heard anything from a bot for longer than "one interval plus however long an answer
+// could reasonably take", the bot is a suspect, and the listener gets told right away (usually to make it safe).
+// On a slow link answers take longer, so the deadline stretches with it instead of false alarming.
+// Suspects aren't disconnected, that's still the regular timeout's job. If they start talking again they recover
+public class Heartbeat {
+
+    public interface Listener {
+        // The bot's gone quiet for longer than it should have. Runs on the timing wheel, so don't block or write
+        // here (queue things, like IO.sendSafeState() does)
+        void onSuspect(IO io, long silentNanos);
+
+        // It started talking again
+        void onRecovered(IO io);
+    }
+
+    private final TimingWheel timingWheel;
+    private final long intervalNanos;
+    // The deadline's "answer could take this long" part stays between these
+    private final long minTimeoutNanos;
+    private final long maxTimeoutNanos;
+    private final Listener listener;
+
+    // Pings every intervalMillis. The extra time allowed for an answer is between minTimeoutMillis and maxTimeoutMillis
+    public Heartbeat(TimingWheel timingWheel, long intervalMillis, long minTimeoutMillis, long maxTimeoutMillis,
+                     Listener listener) {
+        this.timingWheel = timingWheel;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+        this.minTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(minTimeoutMillis);
+        this.maxTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(maxTimeoutMillis);
+        this.listener = listener;
+    }
+
+    // Starts watching a new session
+    public void addSession(IO io) {
+        timingWheel.schedule(timeout -> beat(io, System.nanoTime()), 0);
+    }
+
+    // How long a session can be quiet before it's a suspect. Changes as its round trip times change
+    public long getDeadlineNanos(IO io) {
+        return intervalNanos + io.getRtt().getTimeoutNanos(minTimeoutNanos, maxTimeoutNanos);
+    }
+
+    // Runs on the timing wheel. Checks the session, pings it if it's time, then comes back
+    // either at the next ping or the moment it would become a suspect, whichever is first.
+    // The wheel is shared by every session, so nothing here writes to a socket: the ping (and the listener's
+    // safe state) only get queued, and each session's own writer sends them
+    private void beat(IO io, long pingDue) {
+        if (!io.isOpen()) { return; }
+        long now = System.nanoTime();
+        long silent = io.nanosSinceUpdate();
+        long deadline = getDeadlineNanos(io);
+        if (silent >= deadline) {
+            if (!io.isSuspect()) {
+                io.setSuspect(true);
+                listener.onSuspect(io, silent);
+            }
+        } else if (io.isSuspect()) {
+            io.setSuspect(false);
+            listener.onRecovered(io);
+        }
+
+        if (now - pingDue >= 0) {
+            long sentAt = io.getPingSentAt();
+            if (sentAt == 0) {
+                io.sendPing();
+            } else if (now - sentAt > io.getRtt().getTimeoutNanos(minTimeoutNanos, maxTimeoutNanos)) {
+                // The last ping never came back in time. Give the link more slack until one does, and try again
+                io.getRtt().backoff();
+                io.sendPing();
+            }
+            // Otherwise the last one is still on its way. Leave it be
+            pingDue = now + intervalNanos;
+        }
+
+        long next = pingDue - now;
+        if (!io.isSuspect()) { next = Math.min(next, deadline - silent); }
+        long nextPing = pingDue;
+        timingWheel.schedule(timeout -> beat(io, nextPing), Math.max(1, TimeUnit.NANOSECONDS.toMillis(next)));
+    }
+}
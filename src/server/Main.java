@@ -1,20 +1,33 @@
 package server;
 
+import server.bridge.AutonomyBridge;
+import server.control.ControlLoop;
+import server.control.ControlState;
+import server.io.IO;
+import server.io.Threads;
+import server.io.UdpTransport;
+import server.io.limit.RateLimits;
 import server.io.messages.Message;
 import server.io.messages.MessageHandler;
 import server.io.messages.MessageType;
+import server.log.Log;
+import server.record.Recorder;
+import server.telemetry.TelemetryAggregator;
+import server.telemetry.WindowSnapshot;
 
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Paths;
 import java.util.Objects;
-import java.util.Scanner;
 
 public class Main {
     // A socket is basically a metaphorical tunnel system between two devices
     // Data travels back and forth using this tunnel system
 
     // A ServerSocket is like management overlooking the tunnel
-    private static ServerSocket serverSocket;
+    private static ServerSocketChannel serverSocket;
     // The ConnectionHandler... well.... handles the connection
     public static ConnectionHandler connectionHandler;
     // The port can be any combination of 5 digits at or under 65535
@@ -22,77 +35,321 @@ public class Main {
     // (Some ports will likely already be used on your computer)
     private static final int port = 61134;
 
-    public static boolean autoEnabled = true;
+    public static volatile boolean autoEnabled = true;
+
+    // The latest drive/weapon values. The keyboard, autonomous code and console all just write here,
+    // and the control loop sends them to the bots at a steady rate
+    public static final ControlState controlState = new ControlState();
+    private static ControlLoop controlLoop;
+    // The channels the control loop sends
+    private static final MessageType[] controlChannels = {
+            MessageType.SEND_LEFT, MessageType.SEND_RIGHT, MessageType.SEND_WEAPON
+    };
+    // Set with --control-rate=N. How many times a second the control loop sends (50 to 200 is sensible)
+    private static int controlRateHz = 100;
+    // Everything gets resent this often even if it didn't change, in case a bot missed something or just connected
+    private static final long controlRefreshMillis = 500;
+
+    // Set with --event-loop. Runs every connection on a few selector threads instead of a thread each
+    private static boolean eventLoopMode = false;
+    // Set with --no-delay. Turns off TCP's habit of holding small writes back to bundle them
+    private static boolean tcpNoDelay = false;
+    // Set with --batch-writes. Messages pile up and get written together instead of one at a time
+    private static boolean batchWrites = false;
+    // Set with --coalesce. Drive/weapon commands that pile up only send the latest value
+    private static boolean coalesceCommands = false;
+    // Set with --metrics. Logs message counts and latencies every 10 seconds
+    private static boolean reportMetrics = false;
+    // Set with --headless. No window at all, commands come from the console (and the command port if there is one)
+    private static boolean headless = false;
+    // Set with --ui=class. The window to open when not headless
+    private static String uiClass = "server.ServerKeyListener";
+    // Set with --command-port=N. Takes commands from scripts on this computer. 0 means off
+    private static int commandPort = 0;
+    // Set with --record=folder. Saves every message in and out to that folder, for looking through after a match
+    private static String recordDirectory = null;
+    private static Recorder recorder;
+    // Set with --bridge=file. Shares every frame with an autonomy program on this computer (see AutonomyClient),
+    // and sends the commands it sends back while auto is enabled
+    private static String bridgeFile = null;
+    private static AutonomyBridge bridge;
+    // Set with --telemetry. Keeps the last second of every value the bots send, for autonomy code to look at.
+    // Use telemetry.snapshot(session, type, snapshot) to get min/max/mean/percentiles
+    public static TelemetryAggregator telemetry;
+    // Set with --udp. Drive/weapon commands go over UDP (same port number) to bots that ask for it
+    private static boolean useUdp = false;
+    // What every bot is sent on shutdown, so nothing is left driving (or spinning) once the server is gone
+    private static final MessageType[] safeState = { MessageType.DISABLE_WEAPON, MessageType.DISABLE_DRIVE };
+    // How long shutdown waits for queued messages to go out (set with --drain-timeout=N), then for threads to finish.
+    // Together they keep shutdown well under a second, even with a stuck bot
+    private static long drainMillis = 250;
+    private static final long joinMillis = 250;
+    // Set with --max-sessions=N. Connections past that are turned away. 0 means no limit
+    private static int maxSessions = 0;
+    // Set with --accept-backlog=N. How many connections the OS holds onto while we get around to accepting them.
+    // 0 means whatever the OS likes
+    private static int acceptBacklog = 0;
+    // Set with --rate-limit=N. Most frames a second each bot can send (0 means no limit)
+    private static int rateLimit = 0;
+    // Set with --ping-limit=N. Most PING_REQUESTs a second each bot can send, when there's a rate limit.
+    // 0 means a tenth of the rate limit (at least 1)
+    private static int pingLimit = 0;
+    // Set with --heartbeat=N. 0 means off
+    private static int heartbeatMillis = 0;
+    // Reads commands from the console and the command port
+    private static final CommandChannel commandChannel = new CommandChannel(Main::runCommand);
 
     public static void main(String[] args) {
-        new ServerKeyListener();
+        // Check the startup options
+        for (String arg : args) {
+            if (arg.equals("--event-loop")) { eventLoopMode = true; }
+            // Runs the accept loop and each connection's reader on virtual threads (Java 21+)
+            if (arg.equals("--virtual-threads")) { Threads.useVirtualThreads(); }
+            if (arg.equals("--no-delay")) { tcpNoDelay = true; }
+            if (arg.equals("--batch-writes")) { batchWrites = true; }
+            if (arg.equals("--coalesce")) { coalesceCommands = true; }
+            if (arg.equals("--metrics")) { reportMetrics = true; }
+            // Logs every message that doesn't have its own handler (slow, just for debugging)
+            if (arg.equals("--verbose")) { Log.setDebugEnabled(true); }
+            if (arg.startsWith("--control-rate=")) {
+                controlRateHz = Integer.parseInt(arg.substring("--control-rate=".length()));
+            }
+            if (arg.equals("--headless")) { headless = true; }
+            if (arg.startsWith("--ui=")) { uiClass = arg.substring("--ui=".length()); }
+            // Pings every bot this often (in ms) and disables any that go quiet (like --heartbeat=50)
+            if (arg.startsWith("--heartbeat=")) {
+                heartbeatMillis = Integer.parseInt(arg.substring("--heartbeat=".length()));
+            }
+            if (arg.equals("--udp")) { useUdp = true; }
+            if (arg.startsWith("--max-sessions=")) {
+                maxSessions = Integer.parseInt(arg.substring("--max-sessions=".length()));
+            }
+            if (arg.startsWith("--accept-backlog=")) {
+                acceptBacklog = Integer.parseInt(arg.substring("--accept-backlog=".length()));
+            }
+            if (arg.startsWith("--rate-limit=")) {
+                rateLimit = Integer.parseInt(arg.substring("--rate-limit=".length()));
+            }
+            if (arg.startsWith("--ping-limit=")) {
+                pingLimit = Integer.parseInt(arg.substring("--ping-limit=".length()));
+            }
+            if (arg.startsWith("--drain-timeout=")) {
+                drainMillis = Long.parseLong(arg.substring("--drain-timeout=".length()));
+            }
+            if (arg.equals("--telemetry")) { telemetry = new TelemetryAggregator(1000, 256, 8); }
+            if (arg.startsWith("--record=")) { recordDirectory = arg.substring("--record=".length()); }
+            if (arg.startsWith("--bridge=")) { bridgeFile = arg.substring("--bridge=".length()); }
+            if (arg.startsWith("--command-port=")) {
+                commandPort = Integer.parseInt(arg.substring("--command-port=".length()));
+            }
+        }
         // When the file runs, just opens the connection with the specified port
         openConnection(port);
+        if (commandPort > 0) {
+            try {
+                commandChannel.startLocal(commandPort);
+            } catch (IOException e) {
+                Log.error("Error opening command port " + commandPort + "!", e);
+            }
+        }
+        // The window only gets loaded after the server is already up, and only if we want one
+        if (headless) {
+            // Accepts input from the console, so you can actually control the server
+            commandChannel.startConsole();
+        } else {
+            loadUi(uiClass);
+        }
     }
 
     public static void openConnection(int port) {
         try {
             // Opens the connection on the supplied port
-            serverSocket = new ServerSocket(port);
-            System.out.println("Server Opened");
+            serverSocket = ServerSocketChannel.open();
+            // Lets a restarted server take the port right back, instead of waiting for the old connections to time out
+            serverSocket.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            serverSocket.bind(new InetSocketAddress(port), acceptBacklog);
+            Log.info("Server Opened");
         } catch (IOException e) {
-            System.out.println("Connection Listener Closed");
-            e.printStackTrace();
+            Log.error("Connection Listener Closed", e);
         }
 
         // Creates a handler for incoming connections
         connectionHandler = new ConnectionHandler(serverSocket);
+        connectionHandler.setTcpNoDelay(tcpNoDelay);
+        connectionHandler.setFlushPolicy(batchWrites ? IO.FlushPolicy.BATCHED : IO.FlushPolicy.IMMEDIATE);
+        connectionHandler.setCoalesceCommands(coalesceCommands);
+        if (telemetry != null) { connectionHandler.setTelemetry(telemetry); }
+        connectionHandler.setHeartbeat(heartbeatMillis);
+        connectionHandler.setMaxSessions(maxSessions);
+        if (rateLimit > 0) {
+            RateLimits limits = new RateLimits();
+            // Up to a second's worth at once
+            limits.setSessionLimit(rateLimit, rateLimit);
+            // Every ping means we have to write an answer, so those get a much lower limit
+            int pingsPerSecond = pingLimit > 0 ? pingLimit : Math.max(1, rateLimit / 10);
+            limits.setTypeLimit(MessageType.PING_REQUEST, pingsPerSecond, pingsPerSecond);
+            // A bot that goes over by a whole second's worth isn't slowing down, it's flooding us
+            limits.setDisconnectAfter(rateLimit);
+            connectionHandler.setRateLimits(limits);
+        }
+        if (useUdp) {
+            try {
+                // Stale drive/weapon commands are useless, so these are the ones that skip TCP
+                connectionHandler.setUdpTransport(new UdpTransport(port, controlChannels));
+            } catch (IOException e) {
+                Log.error("Error opening UDP port! Commands will all go over TCP", e);
+            }
+        }
+        if (reportMetrics) { connectionHandler.getMetrics().startReporting(10_000); }
+        if (recordDirectory != null) {
+            try {
+                // 64MB files, keeping the newest 16 (1GB total)
+                recorder = new Recorder(Paths.get(recordDirectory), 64 * 1024 * 1024, 16);
+                recorder.start();
+                connectionHandler.setRecorder(recorder);
+                Log.info("Recording to " + recorder.getDirectory().toAbsolutePath());
+            } catch (IOException e) {
+                Log.error("Error starting the recorder! Not recording", e);
+            }
+        }
+        if (bridgeFile != null) {
+            try {
+                // 1MB each way
+                bridge = new AutonomyBridge(connectionHandler, Paths.get(bridgeFile), 1024 * 1024, () -> autoEnabled);
+                bridge.start();
+                connectionHandler.setBridge(bridge);
+                Log.info("Autonomy bridge at " + Paths.get(bridgeFile).toAbsolutePath());
+            } catch (IOException e) {
+                Log.error("Error starting the autonomy bridge! Not sharing frames", e);
+            }
+        }
+        // Starts sending the setpoints at a fixed rate
+        controlLoop = new ControlLoop(connectionHandler, controlState, controlChannels,
+                controlRateHz, controlRefreshMillis);
+        controlLoop.start();
         // Tells the ConnectionHandler to accept incoming connections
-        connectionHandler.startAccepting();
+        if (eventLoopMode) {
+            try {
+                // One event loop per core
+                connectionHandler.startEventLoops(Runtime.getRuntime().availableProcessors());
+            } catch (IOException e) {
+                Log.error("Error starting event loops!", e);
+            }
+        } else {
+            connectionHandler.startAccepting();
+        }
+    }
 
-        // Accepts input from the console, so you can actually control the server
-        //consoleInput();
+    // Runs one command (typed into the console or sent to the command port) and returns what to print back.
+    // A typo (a missing or non-number argument) gets an error back instead of throwing
+    static String runCommand(String input) {
+        try {
+            return execute(input);
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            return "Bad command '" + input + "' (" + e.getMessage() + ")";
+        }
     }
 
-    // Will read inout from the console.
-    // Will do specific stuff if you type specific things.
     // Feel free to add your own conditions and stuff
-    private static void consoleInput() {
-        boolean shutdown = false;
-        // Reading from System.in
-        Scanner reader = new Scanner(System.in);
-        while (!shutdown) {
-            // Will block the thread until you send something in console
-            String input = reader.nextLine();
-            // If you type shutdown, the server will shut down
-            if (Objects.equals(input, "shutdown")) {
-                shutdown = true;
-            } else if (input.startsWith("send ")) {
-                // If you type 'send number', it will send a message
-                // with that number as the type to the bot
-                MessageType type = MessageType.fromInt(Integer.parseInt(input.substring(5)));
-                Message message = MessageHandler.construct(type);
+    private static String execute(String input) {
+        // If you type shutdown, the server will shut down
+        if (Objects.equals(input, "shutdown")) {
+            shutdown();
+        } else if (Objects.equals(input, "metrics")) {
+            // Prints out all the counters and latencies
+            return connectionHandler.getMetrics().snapshot();
+        } else if (Objects.equals(input, "ping")) {
+            // Pings every bot. The round trip times show up in the metrics
+            connectionHandler.pingAll();
+        } else if (input.startsWith("send ")) {
+            // If you type 'send number', it will send a message
+            // with that number as the type to every bot.
+            // 'send number session' sends it to just that one session
+            String[] parts = input.substring(5).trim().split(" +");
+            MessageType type = MessageType.fromInt(Integer.parseInt(parts[0]));
+            // There's no way to send a type that doesn't exist (it'd blow up whoever tried to write it)
+            if (type == null) { return "No message type " + parts[0]; }
+            Message message = MessageHandler.construct(type);
+            if (parts.length > 1) {
+                if (!connectionHandler.sendToIO(Integer.parseInt(parts[1]), message)) {
+                    return "No session " + parts[1];
+                }
+            } else {
                 connectionHandler.sendToIO(message);
             }
+        } else if (input.startsWith("set ")) {
+            // 'set number value' sets a drive/weapon setpoint (like 'set 8 100' for left drive forward).
+            // The control loop sends it, same as a key press would
+            String[] parts = input.substring(4).trim().split(" +");
+            MessageType type = MessageType.fromInt(Integer.parseInt(parts[0]));
+            if (type == null) { return "No message type " + parts[0]; }
+            controlState.set(type, Integer.parseInt(parts[1]));
+        } else if (input.equals("stop") || input.startsWith("stop ")) {
+            // EMERGENCY STOP. 'stop' disables weapons and drive on every bot, 'stop tag' on just the bots with that tag
+            String tag = input.length() > 4 ? input.substring(5).trim() : null;
+            return "Stopped " + connectionHandler.emergencyStop(tag) + " bots";
+        } else if (input.startsWith("tag ") || input.startsWith("untag ")) {
+            // 'tag session name' puts a bot in a group (for 'stop name'). 'untag session name' takes it back out
+            String[] parts = input.trim().split(" +");
+            int sessionId = Integer.parseInt(parts[1]);
+            boolean found = parts[0].equals("tag") ? connectionHandler.tagSession(sessionId, parts[2])
+                    : connectionHandler.untagSession(sessionId, parts[2]);
+            if (!found) { return "No session " + parts[1]; }
+        } else if (input.startsWith("stats ")) {
+            // 'stats session type' shows the rolling stats for that session's messages of that type
+            if (telemetry == null) { return "Telemetry is off (start with --telemetry)"; }
+            String[] parts = input.substring(6).trim().split(" +");
+            WindowSnapshot snapshot = new WindowSnapshot();
+            MessageType type = MessageType.fromInt(Integer.parseInt(parts[1]));
+            if (type == null || !telemetry.snapshot(Integer.parseInt(parts[0]), type, snapshot)) {
+                return "Nothing from session " + parts[0] + " of type " + parts[1];
+            }
+            return snapshot.toString();
+        } else {
+            return "Unknown command '" + input + "'";
+        }
+        return null;
+    }
+
+    // Loads an operator window (or any other UI) by its class name. Nothing to do with windows gets loaded
+    // unless this is called, so headless servers never touch AWT/Swing at all.
+    // The class just needs a constructor with no arguments
+    private static void loadUi(String className) {
+        try {
+            Class.forName(className).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+            // No screen (or no such class). The server works fine without it, use the console instead
+            Log.error("Couldn't open UI " + className + ", running headless", e);
+            commandChannel.startConsole();
         }
-        // Always close the reader after use
-        reader.close();
-        // Shuts down after input breaks
-        shutdown();
     }
 
     // Shuts down the server
     public static void shutdown() {
-        System.out.println("Server Shutdown Started");
-        // Close the connection handler
-        if (connectionHandler != null) { connectionHandler.close(); }
+        Log.info("Server Shutdown Started");
+        // Stop taking and sending commands first
+        commandChannel.stop();
+        if (controlLoop != null) { controlLoop.stop(); }
+        if (bridge != null) { bridge.stop(); }
+        // Make every bot safe, let what's queued go out, then close the connection handler
+        if (connectionHandler != null) {
+            new ShutdownCoordinator(connectionHandler, drainMillis, joinMillis, safeState).shutdown();
+        }
+        // Save whatever's been recorded
+        if (recorder != null) { recorder.close(); }
         // Close the server if it isn't already
-        if (serverSocket!= null && !serverSocket.isClosed()) {
-            System.out.println("Server Closing");
+        if (serverSocket!= null && serverSocket.isOpen()) {
+            Log.info("Server Closing");
             try {
                 serverSocket.close();
             } catch (IOException e) {
-                System.out.println("Error closing Server!");
-                e.printStackTrace();
+                Log.error("Error closing Server!", e);
                 serverSocket = null;
             }
         }
-        System.out.println("Server Closed");
+        Log.info("Server Closed");
+        // Make sure everything waiting to be logged actually gets printed before we quit
+        Log.flush();
         // Exits the program
         System.exit(0);
     }
@@ -1,6 +1,5 @@
 package server;
 
-import server.io.messages.MessageHandler;
 import server.io.messages.MessageType;
 
 import javax.swing.*;
@@ -44,32 +43,14 @@ public class ServerKeyListener extends JFrame implements KeyListener {
         switch (KeyEvent.getKeyText(keyCode)) {
             // Spin up weapon
             // For weapon, 100 is full power, -100 is off, 0 is half
-            case "1" -> Main.connectionHandler.sendToIO(MessageHandler.construct(
-                    MessageType.SEND_WEAPON,
-                    new int[]{100}));
+            case "1" -> send(MessageType.SEND_WEAPON, 100);
             // Spin down weapon
-            case "2" -> Main.connectionHandler.sendToIO(MessageHandler.construct(
-                    MessageType.SEND_WEAPON,
-                    new int[]{-100}));
+            case "2" -> send(MessageType.SEND_WEAPON, -100);
             // For drive, 100 is forward, -100 is backward, 0 is off
             // Drive bot forward
-            case "Up" -> {
-                Main.connectionHandler.sendToIO(MessageHandler.construct(
-                        MessageType.SEND_LEFT,
-                        new int[]{100}));
-                Main.connectionHandler.sendToIO(MessageHandler.construct(
-                        MessageType.SEND_RIGHT,
-                        new int[]{100}));
-            }
+            case "Up" -> sendDrive(100, 100);
             // Turn bot left
-            case "Left" -> {
-                Main.connectionHandler.sendToIO(MessageHandler.construct(
-                        MessageType.SEND_LEFT,
-                        new int[]{-100}));
-                Main.connectionHandler.sendToIO(MessageHandler.construct(
-                        MessageType.SEND_RIGHT,
-                        new int[]{100}));
-            }
+            case "Left" -> sendDrive(-100, 100);
             // Enable autonomous mode
             case "3" -> Main.autoEnabled = true;
             // Disable autonomous mode
@@ -85,15 +66,22 @@ public class ServerKeyListener extends JFrame implements KeyListener {
         String key = KeyEvent.getKeyText(keyCode);
         // If the key is a directional key, stop the bot when it is released
         if (key.equals("Up") || key.equals("Down") || key.equals("Left") || key.equals("Right")) {
-            Main.connectionHandler.sendToIO(MessageHandler.construct(
-                    MessageType.SEND_LEFT,
-                    new int[]{0}));
-            Main.connectionHandler.sendToIO(MessageHandler.construct(
-                    MessageType.SEND_RIGHT,
-                    new int[]{0}));
+            sendDrive(0, 0);
         }
     }
 
+    // Sets a command's value. This doesn't touch the network, the control loop sends it on its next tick.
+    // Key repeat just sets the same value over and over, which costs nothing and sends nothing extra
+    private void send(MessageType type, int value) {
+        Main.controlState.set(type, value);
+    }
+
+    // Sets both drive sides. The control loop sends them together in one write
+    private void sendDrive(int left, int right) {
+        Main.controlState.set(MessageType.SEND_LEFT, left);
+        Main.controlState.set(MessageType.SEND_RIGHT, right);
+    }
+
     // We don't use this, but have to put it or else Java yells at us
     public void keyTyped(KeyEvent e) {}
 
@@ -0,0 +1,108 @@
+package server;
+
+import server.io.IO;
+import server.io.messages.MessageHandler;
+import server.io.messages.MessageType;
+import server.log.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Predicate;
+
+// Shuts the ConnectionHandler down cleanly, in a time you can count on.
+// Just closing everything throws away whatever was still queued, and the bots never hear that they should stop.
+// Instead it goes in phases, and none of them can take longer than its timeout (so a stuck bot can't hang shutdown):
+//   1. Stop accepting new bots
+//   2. Send every bot the safe state (like DISABLE_WEAPON and DISABLE_DRIVE)
+//   3. Wait for everything queued to actually get written (up to drainMillis)
+//   4. Close every session
+//   5. Wait for the reader/writer threads and event loops to finish (up to joinMillis)
+// Then it stops everything else, and logs how long each phase took
+public class ShutdownCoordinator {
+
+    // How often to check whether everyone's drained
+    private static final long drainPollNanos = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final ConnectionHandler connectionHandler;
+    private final long drainNanos;
+    private final long joinNanos;
+    private final MessageType[] safeState;
+
+    public ShutdownCoordinator(ConnectionHandler connectionHandler, long drainMillis, long joinMillis,
+                               MessageType... safeState) {
+        this.connectionHandler = connectionHandler;
+        this.drainNanos = TimeUnit.MILLISECONDS.toNanos(drainMillis);
+        this.joinNanos = TimeUnit.MILLISECONDS.toNanos(joinMillis);
+        this.safeState = safeState;
+    }
+
+    // Runs every phase. Returns the report (it's also logged)
+    public String shutdown() {
+        StringBuilder report = new StringBuilder("Shutdown:");
+        long start = System.nanoTime();
+        long phaseStart = start;
+
+        connectionHandler.closeServerSocket();
+        phaseStart = phase(report, "stop accepting", phaseStart, null);
+
+        // Grab the sessions now. Closing them takes them out of the ConnectionHandler, but we still need to join them
+        List<IO> sessions = new ArrayList<>(connectionHandler.getSessions());
+        int reached = sessions.size();
+        for (MessageType type : safeState) {
+            reached = Math.min(reached, connectionHandler.fanOut(MessageHandler.construct(type), (Predicate<IO>) null));
+        }
+        phaseStart = phase(report, "safe state", phaseStart, reached + "/" + sessions.size() + " bots");
+
+        int drained = drain(sessions, phaseStart + drainNanos);
+        phaseStart = phase(report, "drain", phaseStart, drained + "/" + sessions.size() + " drained");
+
+        connectionHandler.close();
+        phaseStart = phase(report, "close", phaseStart, null);
+
+        int stuck = 0;
+        long joinDeadline = phaseStart + joinNanos;
+        try {
+            for (IO io : sessions) {
+                if (!io.join(joinDeadline)) { stuck++; }
+            }
+            stuck += connectionHandler.joinThreads(joinDeadline);
+        } catch (InterruptedException e) {
+            // Someone wants us gone even faster. Don't wait on anything else
+            Thread.currentThread().interrupt();
+        }
+        phase(report, "join", phaseStart, stuck == 0 ? null : stuck + " threads still running");
+
+        report.append(" total ").append(millis(System.nanoTime() - start)).append("ms");
+        Log.info(report.toString());
+        return report.toString();
+    }
+
+    // Waits until every session has written everything it had queued (or is closed), or the deadline passes.
+    // Returns how many made it
+    private int drain(List<IO> sessions, long deadlineNanos) {
+        int drained;
+        while (true) {
+            drained = 0;
+            for (IO io : sessions) {
+                if (!io.isOpen() || io.isDrained()) { drained++; }
+            }
+            if (drained == sessions.size() || System.nanoTime() - deadlineNanos >= 0) { return drained; }
+            LockSupport.parkNanos(this, drainPollNanos);
+        }
+    }
+
+    // Adds a phase to the report. Returns when it ended (so the next one starts there)
+    private static long phase(StringBuilder report, String name, long phaseStart, String detail) {
+        long now = System.nanoTime();
+        report.append(' ').append(name).append(' ').append(millis(now - phaseStart)).append("ms");
+        if (detail != null) { report.append(" (").append(detail).append(')'); }
+        report.append(',');
+        return now;
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.1f", nanos / 1e6);
+    }
+}
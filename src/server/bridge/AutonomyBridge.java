@@ -0,0 +1,144 @@
+package server.bridge;
+
+import server.ConnectionHandler;
+import server.io.messages.Message;
+import server.io.messages.MessageHandler;
+import server.log.Log;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+// Lets autonomy code run as its own program (its own JVM) on the same machine, without going through sockets.
+// Both programs map the same file, which holds two SharedRings:
+//   frames:   every message the bots send, as soon as it's decoded (server -> autonomy)
+//   commands: what the autonomy code wants sent to the bots (autonomy -> server)
+// Commands go out the same way as ConnectionHandler.sendToIO, but only while autonomy is enabled.
+// If the autonomy program falls behind, frames are dropped instead of holding up the bots (the sequence skips).
+// The autonomy side uses AutonomyClient.
+//
+// File: [magic int][version int][ring capacity int][pad to 64][frames ring][commands ring]
+public class AutonomyBridge {
+
+    // Put this as the session on a command to send it to every bot
+    public static final int allSessions = -1;
+
+    static final int magic = 0x42524447;
+    static final int version = 1;
+    static final int headerSize = 64;
+    // Most commands handled in one go before checking for frames again
+    private static final int commandBatch = 256;
+    // How long the command thread sleeps when there's nothing to do. Short, since commands are time sensitive
+    private static final long idleNanos = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final ConnectionHandler connectionHandler;
+    // Main.autoEnabled, basically. Commands that show up while it's false are thrown out
+    private final BooleanSupplier enabled;
+    private final MappedByteBuffer buffer;
+    private final SharedRing frames;
+    private final SharedRing commands;
+    // Only the command thread uses this
+    private final Message command = MessageHandler.construct(null);
+
+    private final LongAdder published = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder ignored = new LongAdder();
+
+    private volatile boolean running;
+    private Thread thread;
+
+    // Makes a new bridge file (replacing any old one). Each ring gets capacity bytes (a power of 2)
+    public AutonomyBridge(ConnectionHandler connectionHandler, Path file, int capacity, BooleanSupplier enabled)
+            throws IOException {
+        this.connectionHandler = connectionHandler;
+        this.enabled = enabled;
+        int ringSize = SharedRing.sizeOf(capacity);
+        // Anything left over from last time would look like real messages
+        Files.deleteIfExists(file);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // A fresh file is all zeroes, which is exactly an empty ring
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, headerSize + 2L * ringSize);
+        }
+        frames = new SharedRing(buffer, headerSize, capacity);
+        commands = new SharedRing(buffer, headerSize + ringSize, capacity);
+        buffer.putInt(8, capacity);
+        buffer.putInt(4, version);
+        // The magic goes in last. The autonomy side waits for it before touching anything
+        SharedRing.intHandle.setRelease(buffer, 0, magic);
+        buffer.force();
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this::run, "Autonomy-Bridge");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (thread != null) { LockSupport.unpark(thread); }
+    }
+
+    // Hands a frame a bot sent to the autonomy side. Called on whichever thread received it, and never waits
+    public void publish(int sessionId, Message message) {
+        if (frames.offer(sessionId, message)) {
+            published.increment();
+        } else {
+            dropped.increment();
+        }
+    }
+
+    private void run() {
+        SharedRing.Handler handler = this::forward;
+        while (running) {
+            if (commands.poll(command, handler, commandBatch) == 0) {
+                LockSupport.parkNanos(this, idleNanos);
+            }
+        }
+    }
+
+    private void forward(int sessionId, long sequence, long nanoTime, Message message) {
+        if (!enabled.getAsBoolean() || message.type == null) {
+            ignored.increment();
+            return;
+        }
+        try {
+            if (sessionId == allSessions) {
+                connectionHandler.sendToIO(message);
+            } else if (!connectionHandler.sendToIO(sessionId, message)) {
+                // That bot's gone
+                ignored.increment();
+                return;
+            }
+            forwarded.increment();
+        } catch (RuntimeException e) {
+            Log.error("Error forwarding autonomy command!", e);
+        }
+    }
+
+    public long getPublished() {
+        return published.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getForwarded() {
+        return forwarded.sum();
+    }
+
+    public long getIgnored() {
+        return ignored.sum();
+    }
+}
@@ -0,0 +1,61 @@
+package server.bridge;
+
+import server.io.messages.Message;
+import server.io.messages.MessageHandler;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// The autonomy program's end of an AutonomyBridge. Run it in its own JVM, pointed at the same file as the server:
+//   AutonomyClient client = AutonomyClient.open(Paths.get("bridge.shm"));
+//   client.poll((session, sequence, nanoTime, message) -> { ...look at what the bot sent... }, 256);
+//   client.send(session, command);
+// poll() and send() each have to stay on one thread (it can be the same one). Neither ever waits or allocates
+public class AutonomyClient {
+
+    private final SharedRing frames;
+    private final SharedRing commands;
+    // Reused for every frame handed to poll()'s handler
+    private final Message frame = MessageHandler.construct(null);
+
+    private AutonomyClient(MappedByteBuffer buffer, int capacity) {
+        int ringSize = SharedRing.sizeOf(capacity);
+        frames = new SharedRing(buffer, AutonomyBridge.headerSize, capacity);
+        commands = new SharedRing(buffer, AutonomyBridge.headerSize + ringSize, capacity);
+    }
+
+    // Maps the bridge file the server made. Throws if it isn't one (or the server hasn't finished making it)
+    public static AutonomyClient open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            if ((int) SharedRing.intHandle.getAcquire(buffer, 0) != AutonomyBridge.magic) {
+                throw new IOException(file + " isn't a bridge file (or the server isn't done making it)");
+            }
+            if (buffer.getInt(4) != AutonomyBridge.version) {
+                throw new IOException(file + " is bridge version " + buffer.getInt(4) + ", we only know "
+                        + AutonomyBridge.version);
+            }
+            return new AutonomyClient(buffer, buffer.getInt(8));
+        }
+    }
+
+    // Hands up to limit of the bots' frames to the handler. Returns how many there were.
+    // The sequence goes up by one per frame, so a jump means some were dropped because we fell behind
+    public int poll(SharedRing.Handler handler, int limit) {
+        return frames.poll(frame, handler, limit);
+    }
+
+    // Sends a command to a bot (or every bot, with AutonomyBridge.allSessions).
+    // Returns false if the server is behind and there's no room. The message is copied, so you can reuse it
+    public boolean send(int sessionId, Message message) {
+        return commands.offer(sessionId, message);
+    }
+
+    // How many bytes of frames are waiting for us
+    public long getBacklog() {
+        return frames.getBacklog();
+    }
+}
@@ -0,0 +1,144 @@
+package server.bridge;
+
+import server.io.messages.FrameFormat;
+import server.io.messages.Message;
+import server.io.messages.MessageHandler;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// A ring of messages living in shared memory (a memory-mapped file), so two separate programs on the same
+// machine can pass messages to each other without sockets, system calls or copies through the kernel.
+// One side puts messages in, the other side takes them out. Everything the two sides need to agree on
+// (where the ring starts and ends) lives in the file itself, not in either program's memory.
+//
+// Control block: [tail long][pad][head long][pad][sequence long][pad]   (each on its own 64 byte cache line)
+// Record:        [length int][session int][sequence long][time, System.nanoTime long][BINARY frame (no CRC)]
+// Records are padded to a multiple of 8 bytes. A length of 0 means nothing's there (yet).
+// A negative length means "skip this many bytes", for the leftover space at the end when a record didn't fit
+//
+// Putting messages in works from any number of threads (in the same program): each one grabs space by
+// bumping the tail (compareAndSet), then fills it in. The length goes in last, so the reader never sees
+// half a record. Only one thread can take messages out. It zeroes what it read, then moves the head up,
+// which is what tells the writers there's room again
+public class SharedRing {
+
+    // What to do with each message taken out. The message is reused, so copy anything you want to keep
+    public interface Handler {
+        void onMessage(int sessionId, long sequence, long nanoTime, Message message);
+    }
+
+    static final int controlSize = 192;
+    static final int recordHeaderSize = 24;
+    private static final int tailOffset = 0;
+    private static final int headOffset = 64;
+    private static final int sequenceOffset = 128;
+
+    // Plain ByteBuffer reads and writes could be reordered (or cached), and the other program might be
+    // looking at any moment. These do them with the right memory ordering
+    static final VarHandle intHandle = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+    private static final VarHandle longHandle = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final ByteBuffer buffer;
+    // Where the control block and the records start in the buffer
+    private final int control;
+    private final int data;
+    private final int capacity;
+    // The capacity is always a power of 2, so "position % capacity" can be done with a quick bit mask
+    private final int mask;
+
+    // The ring takes up controlSize + capacity bytes of the buffer, starting at offset.
+    // offset has to be a multiple of 64 (so the counters line up), and capacity a power of 2
+    public SharedRing(ByteBuffer buffer, int offset, int capacity) {
+        if (Integer.bitCount(capacity) != 1 || capacity < 64) {
+            throw new IllegalArgumentException("capacity must be a power of 2 (at least 64)");
+        }
+        this.buffer = buffer;
+        this.control = offset;
+        this.data = offset + controlSize;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+    }
+
+    // How many bytes a ring with this capacity takes up
+    public static int sizeOf(int capacity) {
+        return controlSize + capacity;
+    }
+
+    // Puts a message in. Never waits: returns false if there isn't room (the reader is behind).
+    // The sequence goes up for every message offered, even ones that don't fit, so the reader can spot gaps
+    public boolean offer(int sessionId, Message message) {
+        int length = recordHeaderSize + MessageHandler.encodedLength(message, FrameFormat.BINARY, false);
+        int size = align(length);
+        long sequence = (long) longHandle.getAndAdd(buffer, control + sequenceOffset, 1L);
+        if (size > capacity) { return false; }
+        long tail;
+        int index;
+        int padding;
+        do {
+            tail = (long) longHandle.getVolatile(buffer, control + tailOffset);
+            index = (int) (tail & mask);
+            // Records never wrap around the end. If it doesn't fit, skip to the start
+            padding = index + size > capacity ? capacity - index : 0;
+            // Full. Everything between head and tail is still waiting to be read
+            if (tail + padding + size - (long) longHandle.getAcquire(buffer, control + headOffset) > capacity) {
+                return false;
+            }
+        } while (!longHandle.compareAndSet(buffer, control + tailOffset, tail, tail + padding + size));
+        if (padding > 0) {
+            intHandle.setRelease(buffer, data + index, -padding);
+            index = 0;
+        }
+        int at = data + index;
+        buffer.putInt(at + 4, sessionId);
+        buffer.putLong(at + 8, sequence);
+        buffer.putLong(at + 16, System.nanoTime());
+        MessageHandler.encodeAt(message, buffer, at + recordHeaderSize);
+        // Last, so the record only shows up once it's all there
+        intHandle.setRelease(buffer, at, length);
+        return true;
+    }
+
+    // Takes out up to limit messages, handing each to the handler (using message for all of them).
+    // Returns how many it took. Only one thread can do this at a time
+    public int poll(Message message, Handler handler, int limit) {
+        long head = (long) longHandle.getVolatile(buffer, control + headOffset);
+        int count = 0;
+        while (count < limit) {
+            int at = data + (int) (head & mask);
+            int length = (int) intHandle.getAcquire(buffer, at);
+            // Nothing there yet (or it's still being written)
+            if (length == 0) { break; }
+            int size = length < 0 ? -length : align(length);
+            if (length > 0) {
+                // Skip the frame's length. We already know where it ends
+                int start = at + recordHeaderSize;
+                while (buffer.get(start++) < 0) { }
+                if (MessageHandler.decodeInto(buffer, start, at + length, message, FrameFormat.BINARY, false)) {
+                    handler.onMessage(buffer.getInt(at + 4), buffer.getLong(at + 8), buffer.getLong(at + 16), message);
+                }
+                count++;
+            }
+            // Zero it, so a record written here later can't be mistaken for this one
+            for (int i = 0; i < size; i += 8) {
+                buffer.putLong(at + i, 0L);
+            }
+            head += size;
+            // Gives the space back to the writers (and makes sure they see the zeroes)
+            longHandle.setRelease(buffer, control + headOffset, head);
+        }
+        return count;
+    }
+
+    // How many bytes are waiting to be read
+    public long getBacklog() {
+        return (long) longHandle.getVolatile(buffer, control + tailOffset)
+                - (long) longHandle.getVolatile(buffer, control + headOffset);
+    }
+
+    private static int align(int length) {
+        return (length + 7) & ~7;
+    }
+}
@@ -0,0 +1,113 @@
+package server.control;
+
+import server.ConnectionHandler;
+import server.io.messages.Message;
+import server.io.messages.MessagePool;
+import server.io.messages.MessageType;
+import server.log.Log;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Sends the setpoints in a ControlState to the bots at a fixed rate (like 100 times a second).
+// Only values that changed since the last tick get sent, plus a full refresh every so often in case the bot
+// missed something (or just connected). No matter how fast keys are mashed, the link never gets more than
+// one message per channel per tick, and all the changes in a tick go out together in one write
+public class ControlLoop {
+
+    private final ConnectionHandler connectionHandler;
+    private final ControlState state;
+    // Which channels to send. Usually SEND_LEFT, SEND_RIGHT and SEND_WEAPON
+    private final MessageType[] channels;
+    private final long periodNanos;
+    private final long refreshNanos;
+
+    // What we last sent for each channel (indexed the same as channels), and whether we've sent it at all
+    private final int[] lastSent;
+    private final boolean[] sent;
+    private long lastRefresh;
+
+    // Reused for every message. queueToIO copies it, so it's free again right away
+    private final Message message;
+
+    private volatile boolean running;
+    private Thread thread;
+
+    // rateHz is how many times a second to send. refreshMillis is how often to resend everything anyway
+    public ControlLoop(ConnectionHandler connectionHandler, ControlState state, MessageType[] channels,
+                       int rateHz, long refreshMillis) {
+        if (rateHz <= 0) { throw new IllegalArgumentException("rateHz must be positive"); }
+        this.connectionHandler = connectionHandler;
+        this.state = state;
+        this.channels = channels.clone();
+        periodNanos = TimeUnit.SECONDS.toNanos(1) / rateHz;
+        refreshNanos = TimeUnit.MILLISECONDS.toNanos(refreshMillis);
+        lastSent = new int[channels.length];
+        sent = new boolean[channels.length];
+        message = new MessagePool(1).acquire(null, 0);
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this::run, "ControlLoop");
+        thread.setDaemon(true);
+        // Steady timing matters more here than almost anything else
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (thread != null) { LockSupport.unpark(thread); }
+    }
+
+    private void run() {
+        long nextTick = System.nanoTime();
+        lastRefresh = nextTick;
+        while (running) {
+            // Sleep until the next tick. Aiming at a fixed point in time (instead of "sleep for one period")
+            // means small delays don't add up and make the loop drift
+            long sleep;
+            while (running && (sleep = nextTick - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, sleep);
+            }
+            if (!running) { break; }
+            try {
+                tick();
+            } catch (RuntimeException e) {
+                Log.error("Error in control loop!", e);
+            }
+            nextTick += periodNanos;
+            // If we fell way behind (the computer hiccuped), skip the missed ticks instead of sending a burst
+            long now = System.nanoTime();
+            if (now - nextTick > periodNanos) { nextTick = now + periodNanos; }
+        }
+    }
+
+    // Sends every channel that changed (or all of them, if it's time for a refresh)
+    private void tick() {
+        long now = System.nanoTime();
+        boolean refresh = now - lastRefresh >= refreshNanos;
+        if (refresh) { lastRefresh = now; }
+        boolean queued = false;
+        for (int i = 0; i < channels.length; i++) {
+            long raw = state.getRaw(channels[i].ordinal());
+            if (!ControlState.isSet(raw)) {
+                sent[i] = false;
+                continue;
+            }
+            int value = ControlState.valueOf(raw);
+            if (refresh || !sent[i] || lastSent[i] != value) {
+                message.type = channels[i];
+                message.values[0] = value;
+                connectionHandler.queueToIO(message);
+                lastSent[i] = value;
+                sent[i] = true;
+                queued = true;
+            }
+        }
+        // Everything from this tick goes out in one write. Each bot's own writer does it,
+        // so the tick never waits on a socket
+        if (queued) { connectionHandler.flushIO(); }
+    }
+}
@@ -0,0 +1,51 @@
+package server.control;
+
+import server.io.messages.MessageType;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// The latest value (setpoint) for each actuator channel, like "left drive should be at 100".
+// Anything can write a setpoint at any time (the keyboard, autonomous code, console scripts) and it never
+// touches the network. The ControlLoop reads these at a steady rate and sends whatever changed.
+// Writing the same value 30 times a second (like key repeat does) costs nothing, only the latest value counts
+public class ControlState {
+
+    // One slot per MessageType. A slot holds the value in its bottom 32 bits, with a bit above that
+    // meaning "this has been set". 0 means nobody has set it yet, so it won't be sent.
+    // Packing both into one long means a single atomic write updates both at once, no locks
+    private static final long setBit = 1L << 32;
+
+    private final AtomicLongArray slots = new AtomicLongArray(MessageType.count());
+
+    // Sets a channel's value. The control loop sends it on its next tick (if it changed)
+    public void set(MessageType channel, int value) {
+        slots.set(channel.ordinal(), setBit | (value & 0xFFFFFFFFL));
+    }
+
+    // Forgets a channel's value, so it stops being sent
+    public void clear(MessageType channel) {
+        slots.set(channel.ordinal(), 0);
+    }
+
+    public boolean isSet(MessageType channel) {
+        return slots.get(channel.ordinal()) != 0;
+    }
+
+    // The channel's value (0 if it was never set)
+    public int get(MessageType channel) {
+        return (int) slots.get(channel.ordinal());
+    }
+
+    // The raw slot, so the control loop can read "set or not" and the value in one go
+    long getRaw(int ordinal) {
+        return slots.get(ordinal);
+    }
+
+    static boolean isSet(long raw) {
+        return raw != 0;
+    }
+
+    static int valueOf(long raw) {
+        return (int) raw;
+    }
+}
@@ -0,0 +1,124 @@
+package server.io;
+
+import server.log.Log;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+// One thread watching lots of channels at once.
+// Instead of a thread sitting blocked on each socket, a Selector tells us which sockets
+// are ready to read/write/accept, and this one thread handles all of them.
+// That way the number of connections isn't tied to the number of threads
+public class EventLoop {
+
+    // Anything that wants to be told when its channel is ready
+    public interface Handler {
+        void onReady(SelectionKey key);
+    }
+
+    private final String name;
+    private final Selector selector;
+    // Other threads can't safely mess with the selector while it's selecting,
+    // so they leave jobs here and wake the loop up to run them
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    // Saved once so select() doesn't need a new object every time around
+    private final Consumer<SelectionKey> keyHandler = this::handleKey;
+    private volatile boolean running;
+    private Thread thread;
+
+    public EventLoop(String name) throws IOException {
+        this.name = name;
+        selector = Selector.open();
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this::run, name);
+        thread.start();
+    }
+
+    // Runs a job on the loop's thread (soon, not right now)
+    public void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    // Starts watching a channel. The handler is called on this loop's thread whenever it's ready
+    public void register(SelectableChannel channel, int ops, Handler handler, Consumer<SelectionKey> onRegistered) {
+        execute(() -> {
+            try {
+                SelectionKey key = channel.register(selector, ops, handler);
+                if (onRegistered != null) { onRegistered.accept(key); }
+            } catch (ClosedChannelException e) {
+                Log.info("Tried to register a closed channel on " + name);
+            }
+        });
+    }
+
+    // Changing what we're interested in only kicks in once the selector wakes up
+    public void wakeup() {
+        selector.wakeup();
+    }
+
+    public boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                // Blocks until at least one channel is ready (or someone calls wakeup())
+                selector.select(keyHandler);
+            } catch (IOException e) {
+                Log.error("Error in event loop " + name + "!", e);
+            }
+            runTasks();
+        }
+        // Close everything this loop was watching
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Log.error("Error closing event loop " + name + "!", e);
+        }
+    }
+
+    private void handleKey(SelectionKey key) {
+        // The key gets cancelled when its channel closes, so make sure it's still good
+        if (key.isValid()) {
+            try {
+                ((Handler) key.attachment()).onReady(key);
+            } catch (RuntimeException e) {
+                // One broken connection shouldn't take down every other connection on this loop
+                Log.error("Error handling channel on " + name + "!", e);
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    // Stops the loop. It finishes what it's doing, then closes the selector
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    // Waits for the loop's thread to finish after stop() (up to the timeout)
+    public void join(long timeoutMillis) throws InterruptedException {
+        if (thread != null) { thread.join(timeoutMillis); }
+    }
+
+    public boolean isAlive() {
+        return thread != null && thread.isAlive();
+    }
+}
@@ -0,0 +1,164 @@
+package server.io;
+
+import server.io.messages.FrameFormat;
+import server.io.messages.MessageHandler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+// Reads whatever the socket has in one big gulp, then chops it up into messages.
+// Reading one byte at a time means one system call per byte, which gets really slow really fast
+public class FrameDecoder {
+
+    // Gets told about every complete message we find. The buffer is only valid during the call.
+    // For LEGACY, start to end is the message without the ';'. For BINARY, it's everything after the length
+    public interface FrameConsumer {
+        void onFrame(ByteBuffer buffer, int start, int end);
+    }
+
+    // The bytes can't be split into messages anymore: one is bigger than we'll ever take, or its length is
+    // nonsense. There's no telling where the next message starts after that, so the connection should be closed
+    public static class MalformedFrameException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public MalformedFrameException(String message) {
+            super(message);
+        }
+    }
+
+    // We reuse the same buffer, so reading doesn't create any garbage.
+    // It only gets swapped for a bigger one if a message doesn't fit (up to maxCapacity)
+    private ByteBuffer buffer;
+    private final int maxCapacity;
+    // How far into the unread data we've already looked for a delimiter
+    // (so we don't rescan the same bytes every time a partial message grows)
+    private int scanned;
+
+    // Which format the bytes are in. Can change between messages (after the handshake),
+    // so it's checked again for every message
+    private FrameFormat format = FrameFormat.LEGACY;
+    // How many messages have been handed to the consumer, ever
+    private long delivered;
+
+    public FrameDecoder(int capacity) {
+        this(capacity, capacity);
+    }
+
+    public FrameDecoder(int capacity, int maxCapacity) {
+        // A direct buffer lets the OS copy straight into it, skipping a trip through the Java heap
+        buffer = ByteBuffer.allocateDirect(capacity);
+        this.maxCapacity = Math.max(capacity, maxCapacity);
+    }
+
+    // Switches formats. Safe to call from inside onFrame, it kicks in with the very next message
+    public void setFormat(FrameFormat format) {
+        this.format = format;
+    }
+
+    public FrameFormat getFormat() {
+        return format;
+    }
+
+    // Reads as much as is available from the channel. Returns -1 when the bot hung up (end of stream).
+    // Throws MalformedFrameException if a single message fills the whole (biggest) buffer and still isn't finished
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        if (!buffer.hasRemaining() && !grow(buffer.capacity() * 2)) {
+            throw new MalformedFrameException("Message too big (over " + maxCapacity + " bytes and not finished)");
+        }
+        return channel.read(buffer);
+    }
+
+    // Hands every complete message in the buffer to the consumer. Returns how many were found.
+    // Throws MalformedFrameException if a BINARY length is bad (see nextBinaryFrame)
+    public int drain(FrameConsumer consumer) throws IOException {
+        long deliveredBefore = delivered;
+        int limit = buffer.position();
+        int start = 0;
+        while (start < limit) {
+            int next = format == FrameFormat.LEGACY
+                    ? nextLegacyFrame(consumer, start, limit)
+                    : nextBinaryFrame(consumer, start, limit);
+            // Nothing complete left. Wait for more data
+            if (next < 0) { break; }
+            start = next;
+        }
+        // Shift any leftover partial message to the front so the next read can finish it
+        if (start > 0) {
+            scanned = Math.max(0, scanned - start);
+            buffer.flip();
+            buffer.position(start);
+            buffer.compact();
+        }
+        return (int) (delivered - deliveredBefore);
+    }
+
+    // Finds the ';' at the end of the message starting at start. Returns where the next message starts, or -1
+    private int nextLegacyFrame(FrameConsumer consumer, int start, int limit) {
+        for (int i = Math.max(start, scanned); i < limit; i++) {
+            if (buffer.get(i) == MessageHandler.DELIMITER) {
+                // Empty messages (just a ';') have no type, so there's nothing to decode
+                if (i > start) {
+                    delivered++;
+                    consumer.onFrame(buffer, start, i);
+                }
+                scanned = i + 1;
+                return i + 1;
+            }
+        }
+        scanned = limit;
+        return -1;
+    }
+
+    // Reads the length in front of the message. No scanning needed, we know exactly where it ends.
+    // Returns where the next message starts, or -1
+    private int nextBinaryFrame(FrameConsumer consumer, int start, int limit) throws IOException {
+        int length = 0;
+        int shift = 0;
+        int position = start;
+        byte b;
+        do {
+            // An int never takes more than 5 bytes. A longer length is garbage, not a huge message
+            if (shift == 35) { throw new MalformedFrameException("Message length takes more than 5 bytes"); }
+            // The length itself isn't all here yet
+            if (position >= limit) { return -1; }
+            b = buffer.get(position++);
+            length |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        // Checked before waiting for the rest, so we never grow the buffer for something we'd throw out anyway.
+        // The length in front counts too, since it has to fit in the buffer along with the message
+        if (length <= 0 || length > maxCapacity - (position - start)) {
+            throw new MalformedFrameException("Bad message length (" + length + ", the most we take is "
+                    + maxCapacity + " bytes)");
+        }
+        int end = position + length;
+        if (end > limit) {
+            // Not all here yet. Make sure there will be room for the whole thing once it arrives
+            // (it always fits within maxCapacity, we checked above)
+            if (end - start > buffer.capacity()) { grow(end - start); }
+            return -1;
+        }
+        delivered++;
+        consumer.onFrame(buffer, position, end);
+        scanned = end;
+        return end;
+    }
+
+    // Swaps in a bigger buffer (keeping what's in it). Returns false if we're already as big as we're allowed
+    private boolean grow(int wanted) {
+        if (buffer.capacity() >= maxCapacity) { return false; }
+        int capacity = Math.min(maxCapacity, Math.max(wanted, buffer.capacity() * 2));
+        ByteBuffer bigger = ByteBuffer.allocateDirect(capacity);
+        buffer.flip();
+        bigger.put(buffer);
+        buffer = bigger;
+        return true;
+    }
+
+    // Forgets anything that's been read but not handled yet
+    public void reset() {
+        buffer.clear();
+        scanned = 0;
+    }
+}
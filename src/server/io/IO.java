@@ -1,139 +1,779 @@
 package server.io;
 
 import server.ConnectionHandler;
+import server.bridge.AutonomyBridge;
+import server.io.dispatch.Dispatcher;
+import server.io.limit.RateLimits;
+import server.io.messages.FrameFormat;
 import server.io.messages.Message;
 import server.io.messages.MessageHandler;
+import server.io.messages.MessagePool;
 import server.io.messages.MessageType;
+import server.io.messages.SharedFrame;
+import server.log.Log;
+import server.metrics.Metrics;
+import server.metrics.SessionMetrics;
+import server.record.Recorder;
+import server.timing.RttEstimator;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.Socket;
-import java.util.Vector;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class IO implements EventLoop.Handler {
+    // How messages get written out.
+    // IMMEDIATE writes as soon as something is sent (lowest latency).
+    // BATCHED lets messages pile up for a moment, then a writer sends all of them in one go (fewer, bigger writes)
+    public enum FlushPolicy { IMMEDIATE, BATCHED }
+
+    // Biggest chunk we read off the socket at once. Also the biggest message we can receive
+    // (There can be thousands of sessions, so these are kept small)
+    private static final int receiveBufferSize = 8 * 1024;
+    // BINARY messages can be big. The buffers grow (once) to fit them, up to this size
+    private static final int maxMessageSize = 1024 * 1024;
+    // Most bytes we write in one go. A batch of messages is packed in here and written all at once
+    private static final int sendBufferSize = 1024;
+    // How many messages can be waiting to go out before we start dropping them
+    private static final int outboundQueueSize = 64;
 
-public class IO {
     private final ConnectionHandler connectionHandler;
-    private InputStream in;
-    private static OutputStream out;
-    private boolean inOpen = false;
+    // Which session (bot) this IO belongs to
+    private final int sessionId;
+    // The channel is for talking to the bot, both ways
+    private final SocketChannel channel;
+    // Where this session is in its life (see SessionState). Only ever changed with compareAndSet
+    private final AtomicReference<SessionState> state = new AtomicReference<>(SessionState.CONNECTING);
+    // The last time the bot sent us anything (System.nanoTime). Used for the timeout and the heartbeat
+    private volatile long lastUpdate;
+    // When we last sent the bot a PING_REQUEST (System.nanoTime), or 0 if we aren't waiting on one
+    private volatile long pingSentAt;
+    // Whether the ping we're waiting on was sent while an older one was still out. If so, we can't tell
+    // which one the answer is for, so it's not used for the round trip estimate
+    private volatile boolean pingRetried;
+    // How long answers usually take from this bot
+    private final RttEstimator rtt = new RttEstimator();
+    // Set by the heartbeat when the bot's been quiet for too long
+    private volatile boolean suspect;
+
+    // Where we count messages, bytes and errors. Shared by every session, plus this session's own counters
+    private final Metrics metrics;
+    private final SessionMetrics sessionMetrics;
+    // Decides what to do with each message we receive
+    private final Dispatcher dispatcher;
+    // Saves every message in and out, if recording is turned on (null if it isn't)
+    private final Recorder recorder;
+
+    // Messages we decode come from here and go back after they're processed
+    private final MessagePool messagePool = new MessagePool(4);
+    // Messages waiting to be written. Anyone can add to it without waiting on anyone else
+    private final OutboundQueue outbound = new OutboundQueue(outboundQueueSize);
+    // Copies of outgoing messages come from here (the caller keeps their own message)
+    private final MessagePool outboundPool = new MessagePool(outboundQueueSize, 4);
+    // Messages are encoded straight into this before being written. Only touch it while holding sendLock.
+    // In event loop mode, anything the socket couldn't take yet waits in here until it's writable
+    private ByteBuffer sendBuffer = ByteBuffer.allocateDirect(sendBufferSize);
+    // Only the thread holding this writes to the socket. A lock instead of synchronized, because a
+    // virtual thread blocked inside synchronized hogs the real thread it's running on (and there are only a few of those)
+    private final ReentrantLock sendLock = new ReentrantLock();
+
+    private FlushPolicy flushPolicy = FlushPolicy.IMMEDIATE;
+    // Whether a flush has already been handed off (so we only ask the writer once per batch)
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+    private final Runnable flushTask = this::runScheduledFlush;
+    // Thread mode only. Sleeps until there's something to write. Anyone who shouldn't write on their own
+    // thread (timers, the control loop, a full queue) hands the flush to it
+    private Thread writerThread;
+    // Thread mode only. Reads from the bot until it's closed
+    private Thread receiveThread;
+    // Whether the last write left bytes in the send buffer (the bot's socket was full). Lets shutdown see when we're done
+    private volatile boolean writePending;
 
-    public IO(Socket socket, ConnectionHandler connectionHandler) {
-        // We get a reference to the parent ConnectionHandler, so we can update the timeout
+    // Only set in event loop mode. The loop watching this connection, and our spot in its selector
+    private EventLoop eventLoop;
+    private volatile SelectionKey selectionKey;
+
+    // Splits the bytes we read into separate messages
+    private final FrameDecoder decoder = new FrameDecoder(receiveBufferSize, maxMessageSize);
+    // Saved once so we don't create a new lambda object for every read
+    private final FrameDecoder.FrameConsumer frameConsumer = this::onFrame;
+    // Whether BINARY messages coming in have a CRC on the end
+    private boolean receiveCrc;
+    // What we're sending in. Only touched while holding sendLock.
+    // It switches to whatever was agreed on right after HANDSHAKE_ACCEPTED goes out
+    private FrameFormat sendFormat = FrameFormat.LEGACY;
+    private boolean sendCrc;
+    private volatile FrameFormat agreedFormat = FrameFormat.LEGACY;
+    private volatile boolean agreedCrc;
+    // The HANDSHAKE_ACCEPTED answering the bot's handshake, until it's written. It's the only message that always
+    // goes out in LEGACY, and the format switches right after it
+    private volatile Message handshakeAccept;
+
+    // Only used if the bot asked for UDP in its handshake. Where its datagrams come from (null until the first one),
+    // the token that marks them as ours, and the sequence numbers (see UdpTransport)
+    private final UdpTransport udp;
+    // Hands everything the bot sends to an autonomy program running separately. Null if there isn't one
+    private final AutonomyBridge bridge;
+    // How fast this bot is allowed to send. Null if there's no limit
+    private final RateLimits.Limiter limiter;
+    private volatile SocketAddress udpPeer;
+    private volatile int udpToken;
+    private final AtomicInteger udpSendSequence = new AtomicInteger();
+    // Only touched by the UDP thread. The newest sequence seen at all, and for each type
+    private int udpNewestSequence;
+    private NewestByType udpNewestByType;
+
+    // Groups this bot is in (like "red" or "arena-2"), so a fan-out can target just some of the fleet
+    private final Set<String> tags = ConcurrentHashMap.newKeySet();
+
+    public IO(int sessionId, SocketChannel channel, ConnectionHandler connectionHandler) {
+        // We get a reference to the parent ConnectionHandler, so we can tell it when the bot leaves
         this.connectionHandler = connectionHandler;
+        this.sessionId = sessionId;
+        this.channel = channel;
+        metrics = connectionHandler.getMetrics();
+        sessionMetrics = metrics.newSession(sessionId);
+        dispatcher = connectionHandler.getDispatcher();
+        recorder = connectionHandler.getRecorder();
+        udp = connectionHandler.getUdpTransport();
+        bridge = connectionHandler.getBridge();
+        RateLimits rateLimits = connectionHandler.getRateLimits();
+        limiter = rateLimits == null ? null : rateLimits.newLimiter();
+    }
 
-        try {
-            // An output stream is for sending data to the bot
-            out = socket.getOutputStream();
-        } catch (IOException e) {
-            System.out.println("Error fetching socket output stream!");
-            e.printStackTrace();
-        }
+    // Pick before starting the IO
+    public void setFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+    }
 
-        try {
-            // An input stream is for getting data from the bot
-            in = socket.getInputStream();
-        } catch (IOException e) {
-            System.out.println("Error fetching socket input stream!");
-            e.printStackTrace();
-        }
+    // Only the latest of these commands gets sent if a few pile up. Pick before starting the IO
+    public void setCoalescing(MessageType type, boolean enabled) {
+        outbound.setCoalescing(type, enabled);
     }
 
     // Loop reading messages until connection is closed or errored
     public void startReceive() {
         // This is done in a different thread to prevent blocking the ConnectionHandler
-        Thread inThread = new Thread(() -> {
-            inOpen = true;
-            // A Vector is a lot like an array. It's just a list of Integers with no set size
-            Vector<Integer> receivedData = new Vector<>();
-            while (inOpen) {
-                // Try and receive data from the socket. Will be empty if no data available
-                // We pass in an existing Vector to avoid creating a new one each loop
-                // (The vector is updated inside receive())
-                receive(receivedData);
-
-                // If you actually received data, process it
-                if (!receivedData.isEmpty()) {
-                    // Since the bot sent us data, it hasn't timed out
-                    connectionHandler.updateTimeout();
-
-                    // Turns the received data into something usable
-                    Message message = MessageHandler.decode(receivedData);
-                    processMessage(message);
-                    // We have to clear the vector after we are done processing the data in it
-                    receivedData.clear();
+        // (a virtual thread if they're turned on, so lots of bots stay cheap)
+        receiveThread = Threads.start("Receive-" + sessionId, () -> {
+            while (isOpen()) {
+                // Blocks until the bot sends something, then grabs everything available at once
+                if (!receive()) {
+                    // The bot closed its end (or the socket broke). There's nothing more to read
+                    lost();
+                    break;
+                }
+            }
+        });
+        // The writer sleeps until someone asks for a flush, then writes everything that's piled up.
+        // A flush asked for before it started is still waiting in flushScheduled, so it checks before sleeping
+        writerThread = Threads.start("Write-" + sessionId, () -> {
+            while (isOpen()) {
+                if (flushScheduled.getAndSet(false)) {
+                    flush();
+                } else {
+                    LockSupport.park(this);
                 }
             }
         });
-        // Remember, always start your threads
-        inThread.start();
     }
 
-    // Reads from the InputStream to see if there is data sent from the bot
-    private void receive(Vector<Integer> receivedData) {
-        int data = -1;
+    // Event loop mode. Instead of a thread of our own, the loop tells us when there's data to read
+    public void register(EventLoop eventLoop) throws IOException {
+        this.eventLoop = eventLoop;
+        // Non-blocking means reads and writes return right away instead of waiting
+        channel.configureBlocking(false);
+        eventLoop.register(channel, SelectionKey.OP_READ, this, key -> {
+            selectionKey = key;
+            // Something may have been queued up before we were registered
+            runScheduledFlush();
+        });
+    }
+
+    // Called on the event loop thread when our channel can be read or written
+    @Override
+    public void onReady(SelectionKey key) {
+        if (key.isReadable() && !receive()) {
+            // The bot closed its end (or the socket broke)
+            lost();
+            return;
+        }
+        if (key.isValid() && key.isWritable()) {
+            flush();
+        }
+    }
+
+    // Reads from the channel and handles every complete message in it.
+    // Returns false once the connection is done for
+    private boolean receive() {
         try {
-            // Semicolon is the delimiter I chose. Basically, it denotes the end of a message
-            while (data != ';') {
-                data = in.read();
-                if (data != ';') {
-                    receivedData.add(data);
-                }
+            // -1 means end of stream. The old code stored that as data and looped forever
+            if (decoder.readFrom(channel) < 0) {
+                return false;
             }
+            decoder.drain(frameConsumer);
+            return true;
+        } catch (FrameDecoder.MalformedFrameException e) {
+            // Nothing after this can be read, so the session's done for
+            metrics.decodeError(sessionMetrics);
+            Log.info("Closing session " + sessionId + ": " + e.getMessage());
+            connectionHandler.closeSession(sessionId);
+            return false;
         } catch (IOException e) {
-            if (inOpen) {
-                System.out.println("Error in Connection's IO!");
-                e.printStackTrace();
+            if (isOpen()) {
+                Log.error("Error in Connection's IO!", e);
             }
+            return false;
+        }
+    }
+
+    // The connection died on its own. Unless someone is already closing us, tell the ConnectionHandler
+    private void lost() {
+        if (isOpen()) {
+            Log.info("Bot closed the connection (session " + sessionId + ")");
+            connectionHandler.connectionLost(this);
+        }
+    }
+
+    // Called by the decoder for every full message. The bytes between start and end are the message
+    private void onFrame(ByteBuffer buffer, int start, int end) {
+        // Since the bot sent us data, it hasn't timed out
+        updateTimeout();
+
+        // Turns the received data into something usable
+        FrameFormat format = decoder.getFormat();
+        Message message = messagePool.acquire(null);
+        if (!MessageHandler.decodeInto(buffer, start, end, message, format, receiveCrc)) {
+            metrics.decodeError(sessionMetrics);
+            Log.info("Dropping corrupted message (session " + sessionId + " CRC mismatch or bad values)");
+            message.release();
+            return;
+        }
+        // The frame plus whatever's around it on the wire (the ';', or the length in front)
+        int frameLength = end - start;
+        int wireLength = frameLength + (format == FrameFormat.LEGACY ? 1 : MessageHandler.varintLength(frameLength));
+        handleMessage(message, wireLength);
+        // We're done with it, so it can be reused for the next message
+        message.release();
+    }
+
+    // Everything we do with a message once it's decoded, whichever way it came in
+    private void handleMessage(Message message, int wireLength) {
+        metrics.frameIn(sessionMetrics, message.type, wireLength);
+        // An unknown type is as good as garbage
+        if (message.type == null) { metrics.decodeError(sessionMetrics); }
+        if (limiter != null && !allowed(message)) { return; }
+        if (recorder != null) { recorder.record(sessionId, Recorder.Direction.IN, message); }
+        if (bridge != null && message.type != null) { bridge.publish(sessionId, message); }
+        processMessage(message);
+    }
+
+    // Whether the bot is within its rate limits. If not, the frame is thrown out (and a bot that won't slow down is kicked)
+    private boolean allowed(Message message) {
+        RateLimits.Verdict verdict = limiter.check(message.type, System.nanoTime());
+        if (verdict == RateLimits.Verdict.ALLOW) { return true; }
+        metrics.throttled(sessionMetrics);
+        if (verdict == RateLimits.Verdict.DISCONNECT && isOpen()) {
+            Log.info("Session " + sessionId + " won't stop flooding us. Disconnecting");
+            metrics.kicked();
+            connectionHandler.closeSession(sessionId);
+        }
+        return false;
+    }
+
+    // Called on the UDP thread for each datagram with our token. start to end is the frames after the header.
+    // Handlers for types the bot sends over UDP run on the UDP thread, not the receive thread, so they can run
+    // at the same time as one for a TCP frame from the same bot. The ones we register are fine with that
+    void onDatagram(SocketAddress from, int sequence, ByteBuffer buffer, int start, int end, Message message) {
+        if (!isOpen()) { return; }
+        updateTimeout();
+        // The newest datagram says where the bot is (in case its address changed)
+        if (udpPeer == null || sequence - udpNewestSequence > 0) {
+            udpNewestSequence = sequence;
+            udpPeer = from;
+        }
+        int position = start;
+        while (position < end) {
+            int frameStart = position;
+            int length = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get(position++);
+                length |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0 && position < end && shift < 35);
+            int frameEnd = position + length;
+            // Still going means the length ran off the end, or took more than 5 bytes
+            if (b < 0 || length <= 0 || frameEnd > end) {
+                metrics.decodeError(sessionMetrics);
+                return;
+            }
+            if (!MessageHandler.decodeInto(buffer, position, frameEnd, message, FrameFormat.BINARY, agreedCrc)) {
+                metrics.decodeError(sessionMetrics);
+            } else if (message.type != null && !udpNewestByType.offer(message.type, sequence)) {
+                // Something newer of this type already got here. This one is out of date
+                metrics.dropped(sessionMetrics);
+            } else {
+                handleMessage(message, frameEnd - frameStart);
+            }
+            position = frameEnd;
         }
     }
 
     // Well I mean, we want to actually do stuff when we receive messages, right?
+    // The dispatcher looks up whatever handles this message's type and hands it over
     private void processMessage(Message message) {
-        // A null message type means we won't know what to do with it, so ignore it
-        if (message.type != null) {
-            switch (message.type) {
-                // A handshake is basically just a greeting between devices.
-                // It confirms that the connection is functioning properly
-                case HANDSHAKE_REQUEST -> {
-                    // Creates a message with just a type. Accepts the bot's request
-                    Message response = MessageHandler.construct(MessageType.HANDSHAKE_ACCEPTED);
-                    // Sends the message to the bot
-                    send(response);
-                    System.out.println("Bot's Handshake accepted");
-                }
-                case PING_REQUEST -> {
-                    // Creates a message with just a type. Responds to the bot's ping
-                    Message response = MessageHandler.construct(MessageType.PING_RESPONDED);
-                    // Sends the message to the bot
-                    send(response);
-                }
-                // If there isn't a case for the message type, just print the message to console
-                default -> System.out.println(message);
+        if (!dispatcher.dispatch(this, message)) {
+            // Its worker pool was full up
+            metrics.dropped(sessionMetrics);
+        }
+    }
+
+    // Handles the bot's HANDSHAKE_REQUEST
+    public void acceptHandshake(Message request) {
+        // Only the first handshake counts. A second one (or one after we started closing) is ignored
+        if (!state.compareAndSet(SessionState.CONNECTING, SessionState.HANDSHAKEN)) {
+            Log.info("Ignoring extra handshake (session " + sessionId + ", " + state.get() + ")");
+            return;
+        }
+        // Newer bots put the format they want in the request: [version, flags]
+        if (request.valueCount >= 1 && request.value(0) == FrameFormat.BINARY_VERSION) {
+            int flags = request.valueCount >= 2 ? request.value(1) : 0;
+            boolean crc = (flags & FrameFormat.FLAG_CRC) != 0;
+            // UDP only if the bot asked for it and we have it turned on
+            boolean withUdp = (flags & FrameFormat.FLAG_UDP) != 0 && udp != null;
+            acceptBinary(crc, withUdp);
+            Log.info("Bot's Handshake accepted (session " + sessionId + ", binary" + (crc ? " with CRC" : "")
+                    + (withUdp ? " and UDP" : "") + ")");
+        } else {
+            // Sends a message with just a type. Accepts the bot's request
+            if (!queueAccept(outboundPool.acquire(MessageType.HANDSHAKE_ACCEPTED))) { return; }
+            requestFlush();
+            Log.info("Bot's Handshake accepted (session " + sessionId + ")");
+        }
+    }
+
+    // Queues the answer to the handshake (see handshakeAccept). If it doesn't fit, the bot would sit there waiting
+    // for an accept that never comes, so the handshake failed and the session is closed. Returns false if so
+    private boolean queueAccept(Message accept) {
+        handshakeAccept = accept;
+        if (outbound.offer(accept)) { return true; }
+        handshakeFailed();
+        return false;
+    }
+
+    private void handshakeFailed() {
+        handshakeAccept = null;
+        metrics.dropped(sessionMetrics);
+        Log.info("Handshake failed (session " + sessionId + " outbound queue full). Closing");
+        connectionHandler.closeSession(sessionId);
+    }
+
+    // Handles the bot's PING_RESPONDED. How long it took since our ping is the round trip time
+    public void pingResponded() {
+        long sentAt = pingSentAt;
+        if (sentAt != 0) {
+            pingSentAt = 0;
+            long roundTrip = System.nanoTime() - sentAt;
+            metrics.pingRoundTrip(sessionMetrics, roundTrip);
+            if (!pingRetried) { rtt.update(roundTrip); }
+        }
+    }
+
+    // Agrees to the BINARY format. The accept itself still goes out in LEGACY (that's what the bot is
+    // expecting until it hears back), and says what we agreed to: [version, flags].
+    // The bot waits for the accept before switching, so everything it sends from here on is BINARY
+    private void acceptBinary(boolean crc, boolean withUdp) {
+        decoder.setFormat(FrameFormat.BINARY);
+        receiveCrc = crc;
+        agreedCrc = crc;
+        agreedFormat = FrameFormat.BINARY;
+        Message response = outboundPool.acquire(MessageType.HANDSHAKE_ACCEPTED);
+        response.setValueCount(2);
+        response.values[0] = FrameFormat.BINARY_VERSION;
+        response.values[1] = (crc ? FrameFormat.FLAG_CRC : 0) | (withUdp ? FrameFormat.FLAG_UDP : 0);
+        if (!queueAccept(response)) { return; }
+        if (withUdp) {
+            // The accept goes out in LEGACY (one byte per value), so the port and token come right after it in BINARY
+            udpNewestByType = new NewestByType();
+            udpToken = udp.register(this);
+            Message endpoint = outboundPool.acquire(MessageType.UDP_ENDPOINT);
+            endpoint.setValueCount(2);
+            endpoint.values[0] = udp.getPort();
+            endpoint.values[1] = udpToken;
+            // Without it the bot can't use UDP, and it's waiting for it
+            if (!outbound.offer(endpoint)) {
+                handshakeFailed();
+                return;
             }
         }
+        requestFlush();
+    }
+
+    // Sends a message with just a type to the bot. Uses one of our own messages, so there's nothing to copy
+    public void reply(MessageType type) {
+        if (!isOpen()) { return; }
+        if (outbound.offer(outboundPool.acquire(type))) {
+            requestFlush();
+        } else {
+            metrics.dropped(sessionMetrics);
+        }
+    }
+
+    // Same as reply(), but the write is handed to the session's writer (see scheduleFlush()).
+    // For timers and anything else that isn't one of this session's own threads
+    private void post(MessageType type) {
+        if (!isOpen()) { return; }
+        if (outbound.offer(outboundPool.acquire(type))) {
+            scheduleFlush();
+        } else {
+            metrics.dropped(sessionMetrics);
+        }
     }
 
-    // Sends data to the bot through the OutputStream
+    // Sends data to the bot. The message is copied, so you can reuse yours as soon as this returns
     public void send(Message message) {
+        if (queue(message)) {
+            requestFlush();
+        }
+    }
+
+    // Adds a message to the queue without writing it yet. Call flush() once you've queued everything,
+    // so a bunch of messages (like SEND_LEFT and SEND_RIGHT together) go out in a single write
+    public boolean queue(Message message) {
+        // Closing (or closed). Nobody is going to write it, so don't bother queueing it
+        if (!isOpen()) { return false; }
+        // Types that go over UDP skip the queue entirely, once we know where the bot is
+        SocketAddress peer = udpPeer;
+        if (peer != null && udp.isUdpType(message.type)) { return sendDatagram(peer, message); }
+        if (outbound.offer(copyForQueue(message))) {
+            return true;
+        }
+        // Full. Writing here could block whoever's sending (the control loop, a timer, another bot's handler)
+        // behind this one bot, so the message is dropped instead. Coalescing types never get this far unless
+        // the ring is full of other things. The writer gets a nudge in case nobody's woken it yet
+        metrics.dropped(sessionMetrics);
+        // Usually means the bot isn't reading, and everything we've sent is still waiting to go out
+        Log.info("Error sending message! (session " + sessionId + " outbound queue full)");
+        scheduleFlush();
+        return false;
+    }
+
+    // Sends the message over UDP right now. Returns false if it didn't go out
+    private boolean sendDatagram(SocketAddress peer, Message message) {
+        int sent = udp.send(peer, udpToken, udpSendSequence.incrementAndGet(), message, agreedCrc);
+        if (sent <= 0) {
+            metrics.dropped(sessionMetrics);
+            return false;
+        }
+        metrics.frameOut(sessionMetrics, message.type, sent);
+        if (recorder != null) { recorder.record(sessionId, Recorder.Direction.OUT, message); }
+        return true;
+    }
+
+    // Queues a fan-out frame. Unlike queue(), it isn't copied (everyone shares the same one), and if the queue
+    // is full it's just dropped instead of writing on this thread: one bot that's behind can't hold up the rest
+    public boolean queueShared(SharedFrame frame) {
+        if (!isOpen()) { return false; }
+        SocketAddress peer = udpPeer;
+        if (peer != null && udp.isUdpType(frame.type)) { return sendDatagram(peer, frame); }
+        if (!outbound.offer(frame)) {
+            metrics.dropped(sessionMetrics);
+            return false;
+        }
+        return true;
+    }
+
+    // Whether everything queued has been written to the socket. Safe from any thread.
+    // The order matters: the writer marks the write as pending before it counts messages as done
+    public boolean isDrained() {
+        return outbound.getPending() == 0 && !writePending;
+    }
+
+    // Waits for the reader and writer threads to finish, up to the deadline (System.nanoTime).
+    // Returns false if one of them is still going. Only makes sense after disconnect()
+    public boolean join(long deadlineNanos) throws InterruptedException {
+        return join(receiveThread, deadlineNanos) && join(writerThread, deadlineNanos);
+    }
+
+    private static boolean join(Thread thread, long deadlineNanos) throws InterruptedException {
+        if (thread == null) { return true; }
+        long remaining = deadlineNanos - System.nanoTime();
+        if (remaining > 0) { thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(remaining))); }
+        return !thread.isAlive();
+    }
+
+    // Our own copy of the message, stamped with when it was queued (to measure how long it takes to go out)
+    private Message copyForQueue(Message message) {
+        Message copy = outboundPool.acquireCopy(message);
+        copy.queuedAt = System.nanoTime();
+        return copy;
+    }
+
+    // Sends the bot a PING_REQUEST. When its PING_RESPONDED comes back, the round trip time goes in the metrics.
+    // Called from the heartbeat's timer, so the write is left to the session's writer
+    public void sendPing() {
+        pingRetried = pingSentAt != 0;
+        pingSentAt = System.nanoTime();
+        post(MessageType.PING_REQUEST);
+    }
+
+    // When the ping we're waiting on went out (System.nanoTime), or 0 if there isn't one
+    public long getPingSentAt() {
+        return pingSentAt;
+    }
+
+    public RttEstimator getRtt() {
+        return rtt;
+    }
+
+    public boolean isSuspect() {
+        return suspect;
+    }
+
+    public void setSuspect(boolean suspect) {
+        this.suspect = suspect;
+    }
+
+    // Tells the bot to stop its weapon and drive. Used when something looks wrong with the connection
+    // (usually from a timer), so like sendPing() it never writes on the calling thread
+    public void sendSafeState() {
+        post(MessageType.DISABLE_WEAPON);
+        post(MessageType.DISABLE_DRIVE);
+    }
+
+    public SessionMetrics getMetrics() {
+        return sessionMetrics;
+    }
+
+    // Gets the queued messages written, the way the flush policy says to.
+    // IMMEDIATE writes on the calling thread, so only call this from the session's own threads (its receive
+    // thread, event loop or handlers). Everyone else should use scheduleFlush()
+    public void requestFlush() {
+        if (flushPolicy == FlushPolicy.IMMEDIATE) {
+            flush();
+        } else {
+            scheduleFlush();
+        }
+    }
+
+    // Hands the flush to the session's writer (the event loop, or the writer thread) and returns right away.
+    // Never writes on the calling thread, so a bot that isn't reading can't hold up whoever called it
+    public void scheduleFlush() {
+        // Only the first message of a batch wakes the writer. The rest just pile up until it gets to them
+        if (!flushScheduled.compareAndSet(false, true)) { return; }
+        if (eventLoop != null) {
+            eventLoop.execute(flushTask);
+        } else if (writerThread != null) {
+            LockSupport.unpark(writerThread);
+        }
+        // Otherwise we haven't started yet. Whatever starts us picks it up
+    }
+
+    private void runScheduledFlush() {
+        flushScheduled.set(false);
+        flush();
+    }
+
+    // Writes out everything that's queued, in as few writes as possible.
+    // If someone else is already writing, we don't wait for them. They'll pick up our messages too
+    public void flush() {
+        boolean caughtUp;
+        do {
+            if (!sendLock.tryLock()) { return; }
+            try {
+                caughtUp = writeBatch();
+            } finally {
+                sendLock.unlock();
+            }
+            // Something may have been queued after the writer checked but before it let go of the lock.
+            // Nobody else would send it, so go around again
+        } while (caughtUp && !outbound.isEmpty() && channel.isOpen());
+    }
+
+    // Packs as many queued messages as fit into the send buffer, then writes it all at once.
+    // Returns true if everything in the buffer was written. Only call while holding sendLock
+    private boolean writeBatch() {
+        // Messages taken out and dealt with. They're only counted as done once writePending is up to date
+        int finished = 0;
+        Message message;
+        while ((message = outbound.next()) != null) {
+            // The accept answering the handshake goes out in LEGACY, since the bot hasn't switched yet.
+            // Any other HANDSHAKE_ACCEPTED (say, one typed in the console) is just a message like the rest
+            boolean accept = message == handshakeAccept;
+            FrameFormat format = accept ? FrameFormat.LEGACY : sendFormat;
+            // Fan-out frames are already encoded. Everyone else gets encoded here
+            SharedFrame shared = message instanceof SharedFrame ? (SharedFrame) message : null;
+            int length = shared != null ? shared.length(format, sendCrc) : MessageHandler.encodedLength(message, format, sendCrc);
+            if (sendBuffer.remaining() < length) {
+                if (sendBuffer.position() == 0 && !growSendBuffer(length)) {
+                    // It would never fit, even in an empty buffer
+                    Log.info("Error sending message! (session " + sessionId + " message too big)");
+                    metrics.dropped(sessionMetrics);
+                    message.release();
+                    finished++;
+                    continue;
+                }
+                if (sendBuffer.remaining() < length) {
+                    // Full. Save it for the next write
+                    outbound.unpoll(message);
+                    break;
+                }
+            }
+            // We must first turn the data into something the channel can send
+            if (shared != null) {
+                shared.copyTo(sendBuffer, format, sendCrc);
+            } else {
+                MessageHandler.encode(message, sendBuffer, format, sendCrc);
+            }
+            metrics.frameOut(sessionMetrics, message.type, length);
+            if (recorder != null) { recorder.record(sessionId, Recorder.Direction.OUT, message); }
+            if (message.queuedAt != 0) {
+                metrics.queueToWire(System.nanoTime() - message.queuedAt);
+            }
+            // Before it goes back in the pool, where it could come out again as something else
+            if (accept) { handshakeAccept = null; }
+            message.release();
+            finished++;
+            if (accept) {
+                // Everything after the accept uses whatever was agreed on
+                sendFormat = agreedFormat;
+                sendCrc = agreedCrc;
+                state.compareAndSet(SessionState.HANDSHAKEN, SessionState.ACTIVE);
+            }
+        }
+        if (sendBuffer.position() == 0) {
+            writePending = false;
+            outbound.done(finished);
+            return true;
+        }
         try {
-            // We must first turn the data into something the OutputStream can send
-            out.write(MessageHandler.encode(message));
+            sendBuffer.flip();
+            if (channel.isBlocking()) {
+                // A write can send less than we asked for, so keep going until it's all out
+                while (sendBuffer.hasRemaining()) {
+                    channel.write(sendBuffer);
+                }
+            } else {
+                // Non-blocking writes take what they can. The event loop lets us know when there's room for the rest
+                channel.write(sendBuffer);
+            }
+            sendBuffer.compact();
+            if (selectionKey != null) { setWriteInterest(sendBuffer.position() > 0); }
         } catch (IOException e) {
-            System.out.println("Error sending message!");
-            e.printStackTrace();
+            sendBuffer.clear();
+            if (isOpen()) {
+                Log.error("Error sending message!", e);
+            }
         }
+        writePending = sendBuffer.position() > 0;
+        outbound.done(finished);
+        return !writePending;
+    }
+
+    // Swaps in a bigger (empty) send buffer for a big message. Only call while holding sendLock with the buffer empty
+    private boolean growSendBuffer(int wanted) {
+        if (wanted > maxMessageSize) { return false; }
+        sendBuffer = ByteBuffer.allocateDirect(Math.max(wanted, sendBuffer.capacity() * 2));
+        return true;
+    }
+
+    // Tells the event loop whether we want to hear about the channel being writable
+    private void setWriteInterest(boolean interested) {
+        SelectionKey key = selectionKey;
+        if (key == null || !key.isValid()) { return; }
+        int ops = interested ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+        if (key.interestOps() != ops) {
+            key.interestOps(ops);
+            // The selector only notices the change once it wakes up
+            if (!eventLoop.inLoop()) { eventLoop.wakeup(); }
+        }
+    }
+
+    public int getSessionId() {
+        return sessionId;
+    }
+
+    public void addTag(String tag) {
+        tags.add(tag);
+    }
+
+    public void removeTag(String tag) {
+        tags.remove(tag);
+    }
+
+    public boolean hasTag(String tag) {
+        return tags.contains(tag);
+    }
+
+    public Set<String> getTags() {
+        return tags;
     }
 
-    // Disconnects the client from the server
+    public SessionState getState() {
+        return state.get();
+    }
+
+    public boolean isOpen() {
+        return state.get().isOpen();
+    }
+
+    // Moves the session to CLOSING. Returns true for exactly one caller, ever:
+    // whoever gets true is the one that has to finish closing it (everyone else backs off)
+    public boolean beginClose() {
+        SessionState current;
+        do {
+            current = state.get();
+            if (!current.isOpen()) { return false; }
+        } while (!state.compareAndSet(current, SessionState.CLOSING));
+        return true;
+    }
+
+    // Pretty simple. Just updates the timeout
+    // (usually called when the bot communicates with the server)
+    public void updateTimeout() {
+        lastUpdate = System.nanoTime();
+    }
+
+    // A simple helper function that just calculates the amount of time (in milliseconds) since the last timeout update
+    public long timeSinceUpdate() {
+        return TimeUnit.NANOSECONDS.toMillis(nanosSinceUpdate());
+    }
+
+    // Same as above, in nanoseconds
+    public long nanosSinceUpdate() {
+        return System.nanoTime() - lastUpdate;
+    }
+
+    // Disconnects the client from the server. Safe to call more than once (and from any thread)
     public void disconnect() {
+        // Usually whoever's closing already did this. If not, make sure reads and sends stop now
+        beginClose();
+        if (udpToken != 0) { udp.unregister(udpToken); }
         try {
             // Close all streams then the client
-            inOpen = false;
-            if (in != null) {in.close();}
-            if (out != null) {out.close();}
+            if (channel != null) {channel.close();}
         } catch (IOException e) {
-            System.out.println("Error disconnecting Client!");
-            e.printStackTrace();
+            Log.error("Error disconnecting Client!", e);
+        }
+        // Wake the writer so it sees we're closed, then throw out anything that never got sent
+        if (writerThread != null) { LockSupport.unpark(writerThread); }
+        sendLock.lock();
+        try {
+            outbound.clear();
+        } finally {
+            sendLock.unlock();
         }
+        state.set(SessionState.CLOSED);
     }
 }
\ No newline at end of file
@@ -0,0 +1,23 @@
+package server.io;
+
+import server.io.messages.MessageType;
+
+// The newest UDP sequence number seen for each MessageType from one bot. Datagrams can show up out of order,
+// and an old SEND_LEFT landing after a newer one would undo it. So anything older than the newest of its own type
+// is stale. Other types don't matter: an old SEND_WEAPON is still the newest weapon command, however many
+// SEND_LEFTs came after it. Only the UDP thread touches this
+final class NewestByType {
+
+    private final int[] newest = new int[MessageType.count()];
+    private final boolean[] seen = new boolean[MessageType.count()];
+
+    // Whether this sequence is the newest we've seen for this type (and remembers it if so)
+    boolean offer(MessageType type, int sequence) {
+        int index = type.ordinal();
+        // Comparing the difference works even once the sequence wraps around
+        if (seen[index] && sequence - newest[index] <= 0) { return false; }
+        seen[index] = true;
+        newest[index] = sequence;
+        return true;
+    }
+}
@@ -0,0 +1,161 @@
+package server.io;
+
+import server.io.messages.Message;
+import server.io.messages.MessageHandler;
+import server.io.messages.MessageType;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Messages waiting to be written to one bot.
+// Any number of threads can add messages at once without locking (they just race for the next slot),
+// but only one thread (whoever is writing to the socket) takes them out.
+// Commands like SEND_LEFT can also be "coalesced": if a newer one is added before the old one was sent,
+// the old one is thrown away, since only the latest value matters
+public class OutboundQueue {
+
+    // A ring of slots. tail is the next slot to fill, head is the next slot to take from.
+    // They only ever count up, and "index & mask" wraps them around the ring
+    private final AtomicReferenceArray<Message> slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+    // How many of the messages added the writer is completely done with (encoded into its send buffer, or thrown out).
+    // Unlike head, this doesn't go up while a message is only taken out, so tail - done never misses one in the writer's hands
+    private final AtomicLong done = new AtomicLong();
+
+    // For coalesced types, the latest message waiting to go out (or null if there isn't one)
+    private final AtomicReferenceArray<Message> latest;
+    // Which types get coalesced
+    private final boolean[] coalesce;
+    // A coalesced type only has a placeholder in the ring, which means "send whatever's latest for this type"
+    private final Message[] placeholders;
+    // A message that was taken out but couldn't be sent yet (see unpoll). Always sent before anything else.
+    // Whoever takes messages out next might be a different thread than the one that put it here
+    private volatile Message stash;
+
+    // The capacity is rounded up to a power of 2
+    public OutboundQueue(int capacity) {
+        int size = 1;
+        while (size < capacity) { size <<= 1; }
+        slots = new AtomicReferenceArray<>(size);
+        mask = size - 1;
+        int typeCount = MessageType.count();
+        latest = new AtomicReferenceArray<>(typeCount);
+        coalesce = new boolean[typeCount];
+        placeholders = new Message[typeCount];
+        for (MessageType type : MessageType.values()) {
+            placeholders[type.ordinal()] = MessageHandler.construct(type);
+        }
+    }
+
+    // Turns coalescing on or off for a type. Do this before anything is added
+    public void setCoalescing(MessageType type, boolean enabled) {
+        coalesce[type.ordinal()] = enabled;
+    }
+
+    // Adds a message. The queue owns it from now on and releases it once it's taken out.
+    // Returns false if the queue is full (the message is released and dropped)
+    public boolean offer(Message message) {
+        if (message.type != null && coalesce[message.type.ordinal()]) {
+            int index = message.type.ordinal();
+            Message replaced = latest.getAndSet(index, message);
+            if (replaced != null) {
+                // There was already one waiting, so it already has a spot in line. Just throw the old one out
+                replaced.release();
+                return true;
+            }
+            // First one for this type since the last send. It needs a spot in line
+            if (!add(placeholders[index])) {
+                Message dropped = latest.getAndSet(index, null);
+                if (dropped != null) { dropped.release(); }
+                return false;
+            }
+            return true;
+        }
+        if (!add(message)) {
+            message.release();
+            return false;
+        }
+        return true;
+    }
+
+    private boolean add(Message message) {
+        long slot;
+        do {
+            slot = tail.get();
+            // Full. Writing can't keep up (or the bot stopped reading)
+            if (slot - head.get() > mask) { return false; }
+        } while (!tail.compareAndSet(slot, slot + 1));
+        slots.set((int) (slot & mask), message);
+        return true;
+    }
+
+    // Takes the next message out, or null if there's nothing ready yet.
+    // Only one thread can call this at a time (IO makes sure of that with its send lock)
+    public Message next() {
+        if (stash != null) {
+            Message message = stash;
+            stash = null;
+            return message;
+        }
+        return poll();
+    }
+
+    private Message poll() {
+        while (true) {
+            long slot = head.get();
+            if (slot >= tail.get()) { return null; }
+            int index = (int) (slot & mask);
+            Message message = slots.get(index);
+            // Someone claimed the slot but hasn't put their message in yet. Try again in a bit
+            if (message == null) { return null; }
+            slots.set(index, null);
+            head.set(slot + 1);
+            if (message.type != null && message == placeholders[message.type.ordinal()]) {
+                message = latest.getAndSet(message.type.ordinal(), null);
+                // Somehow already taken. Skip it
+                if (message == null) {
+                    done.incrementAndGet();
+                    continue;
+                }
+            }
+            return message;
+        }
+    }
+
+    // Puts a message back at the front after it was taken out but couldn't be sent yet.
+    // Only the thread taking messages out can call this, and only for the last message it took
+    public void unpoll(Message message) {
+        stash = message;
+    }
+
+    // Whether there's nothing left to take out. Only for the thread taking messages out: anyone else could
+    // miss a message that's been taken out but not written yet. They should use getPending()
+    public boolean isEmpty() {
+        return stash == null && head.get() >= tail.get();
+    }
+
+    // The thread taking messages out calls this once it's completely done with some (written them into
+    // its buffer, or thrown them out). Messages put back with unpoll() aren't done
+    public void done(int count) {
+        if (count > 0) { done.addAndGet(count); }
+    }
+
+    // How many messages haven't been dealt with yet, counting any the writer has in its hands.
+    // Safe from any thread. It can be a little high while a message is being added, but never too low
+    public long getPending() {
+        // done first: anything finished after this is still counted
+        long finished = done.get();
+        return tail.get() - finished;
+    }
+
+    // Throws away everything waiting (used when the connection closes)
+    public void clear() {
+        Message message;
+        while ((message = next()) != null) {
+            message.release();
+            done.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package server.io;
+
+// Where a session is in its life. It only ever moves forward (down this list), never back.
+// Every change is a compare-and-set on the IO's state, so when two threads race
+// (say the timeout and the bot hanging up), exactly one of them wins and does the closing
+public enum SessionState {
+    // Connected, but the bot hasn't sent its HANDSHAKE_REQUEST yet
+    CONNECTING,
+    // We got the handshake, and the accept is on its way back
+    HANDSHAKEN,
+    // The accept went out. Both sides agree on the format, so everything is normal from here
+    ACTIVE,
+    // Someone started closing it. Nothing new gets sent or read
+    CLOSING,
+    // The channel is closed and the session is out of the registry
+    CLOSED;
+
+    // Whether messages can still be sent and received
+    public boolean isOpen() {
+        return this.ordinal() < CLOSING.ordinal();
+    }
+}
@@ -0,0 +1,57 @@
+package server.io;
+
+import server.log.Log;
+
+import java.lang.reflect.Method;
+
+// Makes the long-running threads for the server (the accept loop and each connection's reader).
+// Normally these are regular threads. With virtual threads turned on, they're super cheap
+// threads managed by Java itself, so thousands of bots don't mean thousands of real OS threads.
+// Virtual threads only exist in Java 21+, so we look them up by name (reflection) to still compile
+// and run on older Javas. If they aren't there, we just keep using regular threads
+public class Threads {
+
+    // Thread.Builder.unstarted(Runnable) and Thread.Builder.name(String), if this Java has them
+    private static Method unstarted;
+    private static Method name;
+    private static Object virtualBuilder;
+
+    private static volatile boolean virtual = false;
+
+    // Switch to virtual threads for everything started after this.
+    // Returns false (and stays on regular threads) if this Java doesn't support them
+    public static synchronized boolean useVirtualThreads() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            unstarted = builderClass.getMethod("unstarted", Runnable.class);
+            name = builderClass.getMethod("name", String.class);
+            virtualBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+            virtual = true;
+        } catch (ReflectiveOperationException e) {
+            Log.info("Virtual threads need Java 21 or newer. Using regular threads");
+            virtual = false;
+        }
+        return virtual;
+    }
+
+    public static boolean isVirtual() {
+        return virtual;
+    }
+
+    // Creates and starts a thread running the task
+    public static Thread start(String threadName, Runnable task) {
+        Thread thread = null;
+        if (virtual) {
+            try {
+                thread = (Thread) unstarted.invoke(name.invoke(virtualBuilder, threadName), task);
+            } catch (ReflectiveOperationException e) {
+                Log.error("Error creating virtual thread! Using a regular one", e);
+            }
+        }
+        if (thread == null) {
+            thread = new Thread(task, threadName);
+        }
+        thread.start();
+        return thread;
+    }
+}
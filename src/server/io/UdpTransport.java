@@ -0,0 +1,132 @@
+package server.io;
+
+import server.io.messages.FrameFormat;
+import server.io.messages.Message;
+import server.io.messages.MessageHandler;
+import server.io.messages.MessageType;
+import server.log.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Sends (and receives) some message types over UDP instead of TCP.
+// TCP delivers everything in order, so if one packet gets lost, everything after it waits until it's resent.
+// For drive and weapon commands that's backwards: by the time the old command shows up, a newer one already exists.
+// Over UDP a lost command is just lost, and the next one goes through right away.
+// The TCP connection is still the session: the handshake, reliable commands and timeouts all stay on it.
+//
+// A bot turns this on by adding FLAG_UDP to a BINARY handshake. Right after the accept comes a UDP_ENDPOINT
+// with [udp port, token]. The token says which session a datagram belongs to. Every datagram is:
+//   [token int][sequence int][BINARY frames...]
+// The sequence goes up by one for every datagram a side sends. Anything older than the newest one we've seen
+// for that message type is thrown out, so a late command can never undo a newer one.
+// The bot should send one datagram (it can be just the token and sequence) so we learn where to send to
+public class UdpTransport {
+
+    static final int headerSize = 8;
+    // Big enough for any datagram
+    private static final int maxDatagramSize = 64 * 1024;
+
+    private final DatagramChannel channel;
+    // Which types go over UDP (indexed by ordinal)
+    private final boolean[] udpTypes = new boolean[MessageType.count()];
+    // Which session each token belongs to
+    private final ConcurrentHashMap<Integer, IO> sessions = new ConcurrentHashMap<>();
+    // Every thread that sends gets its own buffer to encode into, so senders never wait on each other
+    private final ThreadLocal<ByteBuffer> sendBuffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(maxDatagramSize));
+    // Only the receive thread uses these
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(maxDatagramSize);
+    private final Message received = MessageHandler.construct(null);
+
+    private volatile boolean running;
+    private Thread thread;
+
+    // Listens on the port (use the same number as the TCP port, it's a different protocol so they don't clash).
+    // Messages of these types go over UDP to any bot that asked for it
+    public UdpTransport(int port, MessageType... types) throws IOException {
+        channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(port));
+        for (MessageType type : types) { udpTypes[type.ordinal()] = true; }
+    }
+
+    public int getPort() {
+        try {
+            return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    public boolean isUdpType(MessageType type) {
+        return type != null && udpTypes[type.ordinal()];
+    }
+
+    // Gives a session a token for its datagrams
+    public int register(IO io) {
+        while (true) {
+            int token = ThreadLocalRandom.current().nextInt();
+            if (token != 0 && sessions.putIfAbsent(token, io) == null) { return token; }
+        }
+    }
+
+    public void unregister(int token) {
+        sessions.remove(token);
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this::run, "UDP");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Sends one message in its own datagram. Returns how many bytes went out (0 if it didn't send)
+    int send(SocketAddress peer, int token, int sequence, Message message, boolean crc) {
+        ByteBuffer buffer = sendBuffers.get();
+        buffer.clear();
+        buffer.putInt(token).putInt(sequence);
+        MessageHandler.encode(message, buffer, FrameFormat.BINARY, crc);
+        buffer.flip();
+        try {
+            // UDP doesn't wait around: either the OS takes the whole datagram or it's gone
+            return channel.send(buffer, peer);
+        } catch (IOException e) {
+            if (running) { Log.error("Error sending datagram!", e); }
+            return 0;
+        }
+    }
+
+    private void run() {
+        Log.info("Listening for datagrams on port " + getPort());
+        while (running) {
+            try {
+                receiveBuffer.clear();
+                SocketAddress from = channel.receive(receiveBuffer);
+                if (from == null || receiveBuffer.position() < headerSize) { continue; }
+                IO io = sessions.get(receiveBuffer.getInt(0));
+                // Not anyone we know. Ignore it
+                if (io == null) { continue; }
+                io.onDatagram(from, receiveBuffer.getInt(4), receiveBuffer, headerSize, receiveBuffer.position(), received);
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException | RuntimeException e) {
+                Log.error("Error receiving datagram!", e);
+            }
+        }
+    }
+
+    public void stop() {
+        running = false;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.error("Error closing UDP channel!", e);
+        }
+    }
+}
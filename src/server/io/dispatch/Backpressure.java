@@ -0,0 +1,11 @@
+package server.io.dispatch;
+
+// What to do when a message is headed for a worker pool that's already full up
+public enum Backpressure {
+    // Throw the new message away. Good for things where a newer one is coming soon anyway (sensor readings)
+    DROP,
+    // Keep it anyway, in an overflow line with no size limit. Never loses anything, but can use lots of memory
+    QUEUE,
+    // Make the receive thread wait until there's room. That slows down reading, which slows down the bot
+    BLOCK
+}
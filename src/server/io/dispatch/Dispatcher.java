@@ -0,0 +1,96 @@
+package server.io.dispatch;
+
+import server.io.IO;
+import server.io.messages.Message;
+import server.io.messages.MessageType;
+import server.log.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Decides what happens to each message a bot sends us.
+// Every MessageType has a spot in an array (its ordinal), holding the handler for it. Looking one up
+// is just indexing the array, no giant switch statement, and adding a new handler doesn't mean editing IO.
+// A handler can run right on the receive thread (fast stuff), or on a WorkerPool (slow stuff).
+// Register everything at startup, before connections are accepted
+public class Dispatcher {
+
+    // Where a type's messages go
+    private static final class Route {
+        final FrameHandler handler;
+        // null means run it right on the receive thread
+        final WorkerPool pool;
+        final Backpressure backpressure;
+
+        Route(FrameHandler handler, WorkerPool pool, Backpressure backpressure) {
+            this.handler = handler;
+            this.pool = pool;
+            this.backpressure = backpressure;
+        }
+    }
+
+    private final Route[] routes = new Route[MessageType.count()];
+    // For types with nothing registered, and for types we don't recognize at all
+    private volatile Route fallback;
+    // Every pool we've been given, so they can all be started and stopped together
+    private final List<WorkerPool> pools = new ArrayList<>();
+
+    public Dispatcher() {
+        // By default, messages nobody handles are only logged with debug logging on (printing every message is slow)
+        fallback = new Route((io, message) -> {
+            if (Log.isDebugEnabled()) { Log.debug("Session " + io.getSessionId() + ": " + message); }
+        }, null, Backpressure.DROP);
+    }
+
+    // The handlers the server needs to work at all. These run right on the receive thread.
+    // (The handshake has to, since it can change how the very next message is read)
+    public void registerDefaults() {
+        // A handshake is basically just a greeting between devices.
+        // It confirms that the connection is functioning properly
+        register(MessageType.HANDSHAKE_REQUEST, IO::acceptHandshake);
+        // Sends a message with just a type. Responds to the bot's ping
+        register(MessageType.PING_REQUEST, (io, message) -> io.reply(MessageType.PING_RESPONDED));
+        // The answer to a ping we sent. How long it took is the round trip time
+        register(MessageType.PING_RESPONDED, (io, message) -> io.pingResponded());
+    }
+
+    // Runs the handler right on the receive thread (or the UDP thread, for datagrams). Keep it quick, the bot's
+    // next message waits on it
+    public synchronized void register(MessageType type, FrameHandler handler) {
+        routes[type.ordinal()] = new Route(handler, null, Backpressure.DROP);
+    }
+
+    // Runs the handler on the worker pool. The backpressure says what to do when the pool can't keep up
+    public synchronized void register(MessageType type, FrameHandler handler, WorkerPool pool, Backpressure backpressure) {
+        routes[type.ordinal()] = new Route(handler, pool, backpressure);
+        if (pool != null && !pools.contains(pool)) { pools.add(pool); }
+    }
+
+    // For every type with nothing registered (and types we don't recognize)
+    public synchronized void registerFallback(FrameHandler handler) {
+        fallback = new Route(handler, null, Backpressure.DROP);
+    }
+
+    public synchronized void unregister(MessageType type) {
+        routes[type.ordinal()] = null;
+    }
+
+    // Sends the message to whatever handles its type. Returns false if it had to be dropped
+    public boolean dispatch(IO io, Message message) {
+        Route route = message.type == null ? null : routes[message.type.ordinal()];
+        if (route == null) { route = fallback; }
+        if (route.pool == null) {
+            route.handler.handle(io, message);
+            return true;
+        }
+        return route.pool.submit(io, message, route.handler, route.backpressure);
+    }
+
+    public synchronized void start() {
+        for (WorkerPool pool : pools) { pool.start(); }
+    }
+
+    public synchronized void stop() {
+        for (WorkerPool pool : pools) { pool.stop(); }
+    }
+}
@@ -0,0 +1,10 @@
+package server.io.dispatch;
+
+import server.io.IO;
+import server.io.messages.Message;
+
+// Does something with a message a bot sent us. Register one per MessageType with the Dispatcher.
+// The message only belongs to you until handle() returns, so copy anything you want to keep
+public interface FrameHandler {
+    void handle(IO io, Message message);
+}
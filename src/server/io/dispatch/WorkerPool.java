@@ -0,0 +1,171 @@
+package server.io.dispatch;
+
+import server.io.IO;
+import server.io.Threads;
+import server.io.messages.Message;
+import server.io.messages.MessagePool;
+import server.log.Log;
+
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+// A few threads for running handlers that are too slow to run on the receive thread.
+// The receive thread just drops the message off here and goes straight back to reading.
+// Each thread has its own line of work (a lane), and a session always goes to the same lane. So one bot's
+// messages are handled one at a time, in the order they came in, just like on the receive thread.
+// (The catch: a slow handler holds up the other sessions sharing its lane)
+public class WorkerPool {
+
+    // One message waiting to be handled. These get reused, so handing off work doesn't create garbage
+    private static final class Job {
+        IO io;
+        Message message;
+        FrameHandler handler;
+    }
+
+    // One thread's work
+    private static final class Lane {
+        final BlockingQueue<Job> work;
+        // Jobs that didn't fit in the work queue, for handlers using Backpressure.QUEUE.
+        // Always newer than everything in work (nothing goes in work while there's overflow)
+        final Queue<Job> overflow = new ConcurrentLinkedQueue<>();
+
+        Lane(int queueSize) {
+            work = new ArrayBlockingQueue<>(queueSize);
+        }
+    }
+
+    // How long BLOCK waits between checks while the overflow drains
+    private static final long blockPollMillis = 1;
+
+    private final String name;
+    private final Lane[] lanes;
+    // Used jobs go back here to be reused
+    private final BlockingQueue<Job> freeJobs;
+    // Messages are copied (the receive thread reuses its own as soon as dispatch returns)
+    private final MessagePool messagePool;
+    private final Thread[] threads;
+    private volatile boolean running;
+
+    // queueSize is how many messages can wait before backpressure kicks in, split evenly between the threads
+    public WorkerPool(String name, int threadCount, int queueSize) {
+        this.name = name;
+        lanes = new Lane[threadCount];
+        int laneSize = Math.max(1, (queueSize + threadCount - 1) / threadCount);
+        for (int i = 0; i < threadCount; i++) { lanes[i] = new Lane(laneSize); }
+        freeJobs = new ArrayBlockingQueue<>(queueSize);
+        for (int i = 0; i < queueSize; i++) { freeJobs.add(new Job()); }
+        messagePool = new MessagePool(queueSize, threadCount * 2);
+        threads = new Thread[threadCount];
+    }
+
+    public void start() {
+        running = true;
+        for (int i = 0; i < threads.length; i++) {
+            Lane lane = lanes[i];
+            threads[i] = Threads.start(name + "-" + i, () -> run(lane));
+        }
+    }
+
+    // Hands a message off to be handled later. Returns false if it was dropped
+    public boolean submit(IO io, Message message, FrameHandler handler, Backpressure backpressure) {
+        if (!running) { return false; }
+        Lane lane = lanes[Math.floorMod(io.getSessionId(), lanes.length)];
+        Job job = freeJobs.poll();
+        if (job == null) { job = new Job(); }
+        job.io = io;
+        job.message = messagePool.acquireCopy(message);
+        job.handler = handler;
+        // Anything already overflowing has to go first, or messages would get out of order
+        if (lane.overflow.isEmpty() && lane.work.offer(job)) {
+            return true;
+        }
+        switch (backpressure) {
+            case QUEUE -> {
+                lane.overflow.add(job);
+                return true;
+            }
+            case BLOCK -> {
+                try {
+                    while (running) {
+                        // Same as above: wait for the overflow to be handled before taking a spot in the work queue
+                        if (!lane.overflow.isEmpty()) {
+                            Thread.sleep(blockPollMillis);
+                        } else if (lane.work.offer(job, 100, TimeUnit.MILLISECONDS)) {
+                            return true;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                recycle(job);
+                return false;
+            }
+            default -> {
+                recycle(job);
+                return false;
+            }
+        }
+    }
+
+    private void run(Lane lane) {
+        while (running) {
+            Job job;
+            try {
+                // The work queue is older than the overflow, so it always goes first
+                job = lane.overflow.isEmpty() ? lane.work.poll(100, TimeUnit.MILLISECONDS) : lane.work.poll();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (job == null) { job = lane.overflow.poll(); }
+            if (job == null) { continue; }
+            try {
+                job.handler.handle(job.io, job.message);
+            } catch (RuntimeException e) {
+                // One broken handler shouldn't kill the worker
+                Log.error("Error handling " + job.message.type + " on " + name + "!", e);
+            }
+            recycle(job);
+        }
+    }
+
+    private void recycle(Job job) {
+        job.message.release();
+        job.io = null;
+        job.message = null;
+        job.handler = null;
+        freeJobs.offer(job);
+    }
+
+    // How many messages are waiting to be handled
+    public int getBacklog() {
+        int backlog = 0;
+        for (Lane lane : lanes) { backlog += lane.work.size() + lane.overflow.size(); }
+        return backlog;
+    }
+
+    // Stops the threads and throws out whatever was still waiting (its messages go back to the pool).
+    // A handler that's already running gets to finish
+    public void stop() {
+        running = false;
+        for (Thread thread : threads) {
+            if (thread != null) { thread.interrupt(); }
+        }
+        int discarded = 0;
+        for (Lane lane : lanes) {
+            Job job;
+            while ((job = lane.work.poll()) != null) {
+                recycle(job);
+                discarded++;
+            }
+            while ((job = lane.overflow.poll()) != null) {
+                recycle(job);
+                discarded++;
+            }
+        }
+        if (discarded > 0) { Log.info(name + " stopped with " + discarded + " messages never handled"); }
+    }
+}
@@ -0,0 +1,71 @@
+package server.io.limit;
+
+import server.io.messages.MessageType;
+
+// How fast each bot is allowed to send. Set it up before accepting, then every session gets its own Limiter.
+// There's a limit for everything a session sends, plus (optionally) one for each MessageType, so something
+// cheap like SEND_LEFT can be sent a lot while PING_REQUEST (which makes us write a reply) can't.
+// Frames over the limit are thrown out before anything handles them. A bot that keeps going over
+// (more than disconnectAfter throttled frames at once, or more than that a second on average) gets disconnected
+public class RateLimits {
+
+    // What to do with a frame
+    public enum Verdict { ALLOW, THROTTLE, DISCONNECT }
+
+    private double sessionPerSecond;
+    private int sessionBurst;
+    private final double[] typePerSecond = new double[MessageType.count()];
+    private final int[] typeBurst = new int[MessageType.count()];
+    private int disconnectAfter;
+
+    // Everything a session sends, all types together. 0 turns it off
+    public void setSessionLimit(double perSecond, int burst) {
+        sessionPerSecond = perSecond;
+        sessionBurst = burst;
+    }
+
+    // Just this type. 0 turns it off
+    public void setTypeLimit(MessageType type, double perSecond, int burst) {
+        typePerSecond[type.ordinal()] = perSecond;
+        typeBurst[type.ordinal()] = burst;
+    }
+
+    // How many throttled frames a bot can send (at once, or each second) before it's disconnected. 0 means never, just throttle
+    public void setDisconnectAfter(int perSecond) {
+        disconnectAfter = perSecond;
+    }
+
+    public Limiter newLimiter() {
+        return new Limiter();
+    }
+
+    // One session's buckets
+    public class Limiter {
+        // null where there's no limit
+        private final TokenBucket session;
+        private final TokenBucket[] types = new TokenBucket[MessageType.count()];
+        // Every throttled frame takes one of these. Running out means the bot isn't slowing down
+        private final TokenBucket strikes;
+
+        private Limiter() {
+            session = sessionPerSecond > 0 ? new TokenBucket(sessionPerSecond, sessionBurst) : null;
+            for (int i = 0; i < types.length; i++) {
+                if (typePerSecond[i] > 0) { types[i] = new TokenBucket(typePerSecond[i], typeBurst[i]); }
+            }
+            strikes = disconnectAfter > 0 ? new TokenBucket(disconnectAfter, disconnectAfter) : null;
+        }
+
+        // Checks one frame. now is System.nanoTime()
+        public Verdict check(MessageType type, long now) {
+            TokenBucket typeBucket = type == null ? null : types[type.ordinal()];
+            // The type's limit goes first, so a throttled PING_REQUEST doesn't use up the session's tokens too.
+            // And the other way around: if the session's limit says no, the type's token is given back
+            if (typeBucket == null || typeBucket.tryAcquire(now)) {
+                if (session == null || session.tryAcquire(now)) { return Verdict.ALLOW; }
+                if (typeBucket != null) { typeBucket.refund(); }
+            }
+            if (strikes != null && !strikes.tryAcquire(now)) { return Verdict.DISCONNECT; }
+            return Verdict.THROTTLE;
+        }
+    }
+}
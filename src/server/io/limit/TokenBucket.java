@@ -0,0 +1,45 @@
+package server.io.limit;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Lets something happen at most perSecond times a second on average, with bursts of up to burst at once.
+// Picture a bucket that holds burst tokens and refills at perSecond. Each time costs a token, and no token means no.
+// Instead of actually counting tokens (and refilling them on a timer), we just keep one number: the time the
+// bucket "catches up" (when it would be full again if nothing else happened). Taking a token pushes that time
+// back by one token's worth. If it's already more than a whole bucket's worth ahead of now, the bucket is empty.
+// So checking is one read and one compareAndSet, and nothing ever has to run in the background
+public class TokenBucket {
+
+    private final long nanosPerToken;
+    // How far ahead of now the catch-up time can get (a full bucket's worth)
+    private final long burstNanos;
+    private final AtomicLong catchUp;
+
+    public TokenBucket(double perSecond, int burst) {
+        if (perSecond <= 0 || burst < 1) { throw new IllegalArgumentException("perSecond and burst must be positive"); }
+        nanosPerToken = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / perSecond));
+        burstNanos = nanosPerToken * burst;
+        // Starts full
+        catchUp = new AtomicLong(System.nanoTime());
+    }
+
+    // Takes a token if there is one. now is System.nanoTime()
+    public boolean tryAcquire(long now) {
+        long current;
+        long next;
+        do {
+            current = catchUp.get();
+            // A bucket that's been full for a while doesn't save up extra tokens
+            long from = current - now > 0 ? current : now;
+            next = from + nanosPerToken;
+            if (next - now > burstNanos) { return false; }
+        } while (!catchUp.compareAndSet(current, next));
+        return true;
+    }
+
+    // Gives back a token taken with tryAcquire(), for when whatever it was for didn't happen after all
+    public void refund() {
+        catchUp.addAndGet(-nanosPerToken);
+    }
+}
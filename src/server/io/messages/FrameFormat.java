@@ -0,0 +1,20 @@
+package server.io.messages;
+
+// How messages are laid out on the wire.
+// LEGACY is the original: type byte, each value as one byte, then ';'. Values get squished into a byte,
+// and a value of 59 looks exactly like the ';' at the end, which breaks everything after it.
+// BINARY starts with the length, so nothing has to be scanned for, and values are full ints:
+//   [length varint][type byte][zigzag varint values...][optional 4 byte CRC32C]
+// The length counts everything after itself. Bots pick BINARY during the handshake (see IO);
+// old bots that don't ask for it just keep using LEGACY
+public enum FrameFormat {
+    LEGACY,
+    BINARY;
+
+    // The version number a bot puts in its HANDSHAKE_REQUEST to ask for BINARY
+    public static final int BINARY_VERSION = 1;
+    // Handshake flag asking for a CRC at the end of every BINARY frame
+    public static final int FLAG_CRC = 1;
+    // Handshake flag asking for drive/weapon commands over UDP as well (see UdpTransport)
+    public static final int FLAG_UDP = 2;
+}
@@ -2,7 +2,15 @@ package server.io.messages;
 
 public class Message {
     public MessageType type;
+    // Pooled messages keep their array around between uses, so it can be longer than the message.
+    // Always use valueCount for how many values are actually in it, not values.length
     public int[] values;
+    public int valueCount;
+    // When the message was queued to be sent (System.nanoTime), or 0 if that doesn't apply
+    public long queuedAt;
+
+    // The pool this message goes back to when released (null if it was just created normally)
+    MessagePool pool;
 
     // A message can either just have a type with null values (useful for a ping)
     Message(MessageType type) {
@@ -13,5 +21,39 @@ public class Message {
     Message(MessageType type, int[] values) {
         this.type = type;
         this.values = values;
+        this.valueCount = values == null ? 0 : values.length;
+    }
+
+    // Gets a single value. Saves you from having to null check values yourself
+    public int value(int index) {
+        if (index >= valueCount) {
+            throw new IndexOutOfBoundsException("Message has " + valueCount + " values, asked for " + index);
+        }
+        return values[index];
+    }
+
+    // Makes sure there's room for this many values, and sets the count to it.
+    // Only grows the array, so a reused message stops allocating once it's seen its biggest message
+    public void setValueCount(int count) {
+        if (count > 0 && (values == null || values.length < count)) {
+            values = new int[count];
+        }
+        valueCount = count;
+    }
+
+    // Hands the message back to its pool so it can be reused. Don't touch it after this!
+    public void release() {
+        if (pool != null) {
+            pool.release(this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("Message{").append(type);
+        for (int i = 0; i < valueCount; i++) {
+            builder.append(i == 0 ? ": " : ", ").append(values[i]);
+        }
+        return builder.append('}').toString();
     }
 }
@@ -1,45 +1,200 @@
 package server.io.messages;
 
-import java.util.Vector;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
 
 // This one is a bit of a doozy. Hard to explain, you can just
 // treat it as a black box. It works, it does its job, don't worry about it
 // (or look through it and try and figure it out if you want, lol)
 public class MessageHandler {
 
+    // Semicolon denotes the end of a message. Always tacked on at the... well... end
+    public static final byte DELIMITER = ';';
+
+    // For the CRC on BINARY frames. CRC32C keeps state while it works, so every thread gets its own
+    private static final ThreadLocal<CRC32C> checksums = ThreadLocal.withInitial(CRC32C::new);
+
+    // How many bytes a message takes up once encoded (type + values + delimiter)
+    public static int encodedLength(Message message) {
+        return message.valueCount + 2;
+    }
+
+    // Same as above, but for whichever format you pick
+    public static int encodedLength(Message message, FrameFormat format, boolean crc) {
+        if (format == FrameFormat.LEGACY) { return encodedLength(message); }
+        int bodyLength = binaryBodyLength(message, crc);
+        return varintLength(bodyLength) + bodyLength;
+    }
+
     // Gets the message ready to be sent over the socket
     public static byte[] encode(Message message) {
-        byte[] messageStream;
-        int valueLength;
-        if (message.values != null) {
-            valueLength = message.values.length;
-            messageStream = new byte[valueLength + 2];
-            messageStream[0] = (byte) message.type.ordinal();
-            for (int i = 0; i < valueLength; i++) {
-                messageStream[i + 1] = ((byte) message.values[i]);
-            }
-        } else {
-            valueLength = 0;
-            messageStream = new byte[2];
-            messageStream[0] = (byte) message.type.ordinal();
-        }
-        // Semicolon denotes the end of a message. Always tacked on at the... well... end
-        messageStream[valueLength + 1] = ((byte) ';');
+        byte[] messageStream = new byte[encodedLength(message)];
+        encode(message, ByteBuffer.wrap(messageStream));
         return messageStream;
     }
 
+    // Writes the message straight into a buffer you already have, so nothing new gets created.
+    // Returns how many bytes were written. Throws BufferOverflowException if it doesn't fit
+    public static int encode(Message message, ByteBuffer out) {
+        int valueCount = message.valueCount;
+        out.put((byte) message.type.ordinal());
+        for (int i = 0; i < valueCount; i++) {
+            out.put((byte) message.values[i]);
+        }
+        out.put(DELIMITER);
+        return valueCount + 2;
+    }
+
+    // Writes the message in whichever format you pick. Returns how many bytes were written
+    public static int encode(Message message, ByteBuffer out, FrameFormat format, boolean crc) {
+        if (format == FrameFormat.LEGACY) { return encode(message, out); }
+        int start = out.position();
+        int bodyLength = binaryBodyLength(message, crc);
+        putVarint(out, bodyLength);
+        int bodyStart = out.position();
+        out.put((byte) message.type.ordinal());
+        for (int i = 0; i < message.valueCount; i++) {
+            putVarint(out, zigzag(message.values[i]));
+        }
+        if (crc) {
+            out.putInt(crc32c(out, bodyStart, out.position()));
+        }
+        return out.position() - start;
+    }
+
+    // Writes a BINARY message (no CRC) starting at index, without touching the buffer's position.
+    // That way lots of threads can write into different spots of one shared buffer at the same time.
+    // Takes up encodedLength(message, BINARY, false) bytes. Returns where it ended
+    public static int encodeAt(Message message, ByteBuffer out, int index) {
+        index = putVarintAt(out, index, binaryBodyLength(message, false));
+        out.put(index++, (byte) message.type.ordinal());
+        for (int i = 0; i < message.valueCount; i++) {
+            index = putVarintAt(out, index, zigzag(message.values[i]));
+        }
+        return index;
+    }
+
     // Turns a message read over the socket back into a Message object
-    public static Message decode(Vector<Integer> buffer) {
-        MessageType type = MessageType.fromInt(buffer.get(0));
-        if (buffer.size() > 1) {
-            int[] values = new int[buffer.size()-1];
-            for (int i = 1; i < buffer.size(); i++) {
-                values[i-1] = buffer.get(i);
+    // The message is the bytes from start (inclusive) to end (exclusive), without the ';'
+    public static Message decode(ByteBuffer buffer, int start, int end) {
+        Message message = new Message(null);
+        decodeInto(buffer, start, end, message);
+        return message;
+    }
+
+    // Same as above, but reuses a message from the pool. Release it when you're done with it!
+    public static Message decode(ByteBuffer buffer, int start, int end, MessagePool pool) {
+        Message message = pool.acquire(null);
+        decodeInto(buffer, start, end, message);
+        return message;
+    }
+
+    // Fills in an existing message from the bytes in the buffer
+    public static void decodeInto(ByteBuffer buffer, int start, int end, Message message) {
+        message.type = MessageType.fromInt(buffer.get(start) & 0xFF);
+        int valueCount = end - start - 1;
+        message.setValueCount(valueCount);
+        for (int i = 0; i < valueCount; i++) {
+            message.values[i] = buffer.get(start + 1 + i) & 0xFF;
+        }
+    }
+
+    // Checksum of the bytes from start (inclusive) to end (exclusive). Works on a slice, so the buffer's
+    // position doesn't move (frames are read straight out of the shared receive buffer)
+    static int crc32c(ByteBuffer buffer, int start, int end) {
+        CRC32C checksum = checksums.get();
+        checksum.reset();
+        checksum.update(buffer.slice(start, end - start));
+        return (int) checksum.getValue();
+    }
+
+    // Fills in an existing message from a frame in whichever format you pick.
+    // For BINARY, start to end is everything after the length. Returns false if the CRC didn't match,
+    // or the values don't make sense (a varint longer than 5 bytes, or leftover bytes after the last one)
+    public static boolean decodeInto(ByteBuffer buffer, int start, int end, Message message,
+                                     FrameFormat format, boolean crc) {
+        if (format == FrameFormat.LEGACY) {
+            decodeInto(buffer, start, end, message);
+            return true;
+        }
+        int valuesEnd = end;
+        if (crc) {
+            valuesEnd = end - 4;
+            if (valuesEnd <= start || buffer.getInt(valuesEnd) != crc32c(buffer, start, valuesEnd)) {
+                return false;
             }
-            return new Message(type, values);
-        } else {
-            return new Message(type);
         }
+        message.type = MessageType.fromInt(buffer.get(start) & 0xFF);
+        // Every varint ends with a byte that has its top bit clear, so counting those tells us how many values there are
+        int valueCount = 0;
+        for (int i = start + 1; i < valuesEnd; i++) {
+            if (buffer.get(i) >= 0) { valueCount++; }
+        }
+        message.setValueCount(valueCount);
+        int position = start + 1;
+        for (int i = 0; i < valueCount; i++) {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                // An int never takes more than 5 bytes
+                if (shift == 35) { return false; }
+                b = buffer.get(position++);
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            message.values[i] = unzigzag(value);
+        }
+        // Anything left is the start of a value that never ended
+        return position == valuesEnd;
+    }
+
+    // How many bytes a BINARY message takes up, not counting the length in front
+    private static int binaryBodyLength(Message message, boolean crc) {
+        int length = 1;
+        for (int i = 0; i < message.valueCount; i++) {
+            length += varintLength(zigzag(message.values[i]));
+        }
+        return crc ? length + 4 : length;
+    }
+
+    // Zigzag moves the sign to the bottom bit, so small negative numbers stay small (-1 -> 1, 1 -> 2, -2 -> 3...)
+    // Without it, every negative number would take the full 5 bytes
+    public static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    public static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    // A varint stores 7 bits per byte, and the top bit says whether there's another byte after it.
+    // Small numbers only need one byte, and nothing ever needs more than 5
+    public static void putVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    // Same as above, but at index instead of the buffer's position. Returns the index right after it
+    public static int putVarintAt(ByteBuffer out, int index, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put(index++, (byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put(index++, (byte) value);
+        return index;
+    }
+
+    public static int varintLength(int value) {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            length++;
+            value >>>= 7;
+        }
+        return length;
     }
 
     public static Message construct(MessageType type) {
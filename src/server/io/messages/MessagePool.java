@@ -0,0 +1,76 @@
+package server.io.messages;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Keeps a stash of Message objects around so we can reuse them instead of making new ones.
+// Every new object is garbage eventually, and garbage collection pauses show up as jittery driving
+public class MessagePool {
+    // Each slot either holds a free message or is empty (null).
+    // Swapping slots atomically means any thread can take or return messages without locking
+    private final AtomicReferenceArray<Message> slots;
+
+    public MessagePool(int size) {
+        this(size, size);
+    }
+
+    // Holds up to size messages, but only makes prefill of them up front.
+    // Handy when there are lots of pools (one per session) that are usually mostly empty
+    public MessagePool(int size, int prefill) {
+        slots = new AtomicReferenceArray<>(size);
+        // Fill it up front, so the first few messages don't have to allocate either
+        for (int i = 0; i < Math.min(size, prefill); i++) {
+            Message message = new Message(null);
+            message.pool = this;
+            slots.set(i, message);
+        }
+    }
+
+    // Takes a free message out of the pool. Only makes a new one if the pool is empty
+    public Message acquire(MessageType type) {
+        Message message = null;
+        for (int i = 0; i < slots.length() && message == null; i++) {
+            Message candidate = slots.get(i);
+            if (candidate != null && slots.compareAndSet(i, candidate, null)) {
+                message = candidate;
+            }
+        }
+        if (message == null) {
+            // Everything is in use. Make a new one, it'll join the pool when released (if there's room)
+            message = new Message(null);
+            message.pool = this;
+        }
+        message.type = type;
+        message.valueCount = 0;
+        message.queuedAt = 0;
+        return message;
+    }
+
+    // Same as above, but with a single value filled in (most commands only have one)
+    public Message acquire(MessageType type, int value) {
+        Message message = acquire(type);
+        message.setValueCount(1);
+        message.values[0] = value;
+        return message;
+    }
+
+    // Takes a message out of the pool and makes it an exact copy of another one
+    public Message acquireCopy(Message source) {
+        Message message = acquire(source.type);
+        message.setValueCount(source.valueCount);
+        if (source.valueCount > 0) {
+            System.arraycopy(source.values, 0, message.values, 0, source.valueCount);
+        }
+        return message;
+    }
+
+    // Puts a message back. If the pool is already full, the message is just left for the garbage collector
+    void release(Message message) {
+        message.type = null;
+        message.valueCount = 0;
+        for (int i = 0; i < slots.length(); i++) {
+            if (slots.get(i) == null && slots.compareAndSet(i, null, message)) {
+                return;
+            }
+        }
+    }
+}
@@ -14,24 +14,21 @@ public enum MessageType {
     ENABLE_DRIVE,
     SEND_LEFT,
     SEND_RIGHT,
-    SEND_WEAPON;
+    SEND_WEAPON,
+    // Sent right after HANDSHAKE_ACCEPTED when the bot asked for UDP: [udp port, token]
+    UDP_ENDPOINT;
 
-    // Unlike c++, Java doesn't store enumerators as ascending
-    // integers starting from zero. Thus, we have to do crap like this
+    // Every type, in order. values() makes a new copy of the array each time, so we keep one around
+    private static final MessageType[] byId = values();
+
+    // Unlike c++, Java doesn't store enumerators as ascending integers starting from zero,
+    // but each one does know its position (ordinal). So the type with ID x is just the x-th one
     public static MessageType fromInt(int x) {
-        return switch (x) {
-            case 0 -> HANDSHAKE_REQUEST;
-            case 1 -> HANDSHAKE_ACCEPTED;
-            case 2 -> PING_REQUEST;
-            case 3 -> PING_RESPONDED;
-            case 4 -> DISABLE_WEAPON;
-            case 5 -> ENABLE_WEAPON;
-            case 6 -> DISABLE_DRIVE;
-            case 7 -> ENABLE_DRIVE;
-            case 8 -> SEND_LEFT;
-            case 9 -> SEND_RIGHT;
-            case 10 -> SEND_WEAPON;
-            default -> null;
-        };
+        return x >= 0 && x < byId.length ? byId[x] : null;
+    }
+
+    // How many types there are (handy for making arrays indexed by type)
+    public static int count() {
+        return byId.length;
     }
 }
@@ -0,0 +1,52 @@
+package server.io.messages;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// A message that's already been encoded, so it can be sent to a whole fleet without encoding it again for every bot.
+// It's encoded once for each way a bot can talk (LEGACY, BINARY, BINARY with CRC), all into one read-only buffer.
+// The same object goes into every bot's outbound queue. Nobody gets their own copy, and nobody is allowed to change it
+// (releasing it does nothing, since it doesn't belong to a pool)
+public final class SharedFrame extends Message {
+
+    // Every encoding, back to back. Only ever read with absolute gets, so any number of threads can read it at once
+    private final ByteBuffer frames;
+    private final int legacyLength;
+    private final int binaryLength;
+    private final int crcLength;
+
+    // Copies the message (so you can reuse yours right away) and encodes it
+    public SharedFrame(Message message) {
+        super(message.type, message.valueCount == 0 ? null : Arrays.copyOf(message.values, message.valueCount));
+        legacyLength = MessageHandler.encodedLength(this, FrameFormat.LEGACY, false);
+        binaryLength = MessageHandler.encodedLength(this, FrameFormat.BINARY, false);
+        crcLength = MessageHandler.encodedLength(this, FrameFormat.BINARY, true);
+        // A plain heap buffer. It's only ever copied into each bot's (direct) write buffer, and a new direct buffer
+        // for every broadcast would be slow to allocate and only given back whenever the GC gets around to it
+        ByteBuffer buffer = ByteBuffer.allocate(legacyLength + binaryLength + crcLength);
+        MessageHandler.encode(this, buffer, FrameFormat.LEGACY, false);
+        MessageHandler.encode(this, buffer, FrameFormat.BINARY, false);
+        MessageHandler.encode(this, buffer, FrameFormat.BINARY, true);
+        frames = buffer.asReadOnlyBuffer();
+        // When it was "queued", for the queue to wire metric. Everyone gets the same one, which is the point:
+        // it measures how long it took to reach each bot from when the fan-out started
+        queuedAt = System.nanoTime();
+    }
+
+    public int length(FrameFormat format, boolean crc) {
+        if (format == FrameFormat.LEGACY) { return legacyLength; }
+        return crc ? crcLength : binaryLength;
+    }
+
+    // Copies the right encoding into out (at its position, and moves the position past it).
+    // Only the shared buffer is read, so lots of threads can do this at the same time
+    public void copyTo(ByteBuffer out, FrameFormat format, boolean crc) {
+        int offset = 0;
+        if (format != FrameFormat.LEGACY) {
+            offset = crc ? legacyLength + binaryLength : legacyLength;
+        }
+        int length = length(format, crc);
+        out.put(out.position(), frames, offset, length);
+        out.position(out.position() + length);
+    }
+}
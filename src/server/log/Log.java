@@ -0,0 +1,98 @@
+package server.log;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Prints stuff to the console, but on its own thread.
+// System.out.println makes whoever calls it wait until the text is actually written (and only one thread
+// can print at a time), so printing from the receive thread slows down reading from the bot.
+// Here, callers just drop the line in a queue and get back to work, and a background thread does the printing
+public class Log {
+
+    // If the printer falls this far behind, new lines are thrown out instead of piling up forever
+    private static final int maxQueued = 10_000;
+
+    private static final Queue<String> queue = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger queued = new AtomicInteger();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final Thread printer;
+
+    // Debug lines (like every unhandled message) are off unless you ask for them
+    private static volatile boolean debugEnabled = false;
+
+    static {
+        printer = new Thread(Log::run, "Log");
+        // Don't keep the program alive just to print
+        printer.setDaemon(true);
+        printer.start();
+    }
+
+    public static void info(String line) {
+        enqueue(line);
+    }
+
+    public static void debug(String line) {
+        if (debugEnabled) { enqueue(line); }
+    }
+
+    public static boolean isDebugEnabled() {
+        return debugEnabled;
+    }
+
+    public static void setDebugEnabled(boolean enabled) {
+        debugEnabled = enabled;
+    }
+
+    // Logs the line along with the error's stack trace
+    public static void error(String line, Throwable error) {
+        StringBuilder builder = new StringBuilder(line);
+        if (error != null) {
+            builder.append(System.lineSeparator()).append(error);
+            for (StackTraceElement element : error.getStackTrace()) {
+                builder.append(System.lineSeparator()).append("\tat ").append(element);
+            }
+        }
+        enqueue(builder.toString());
+    }
+
+    // How many lines were thrown out because the printer couldn't keep up
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+    private static void enqueue(String line) {
+        if (queued.incrementAndGet() > maxQueued) {
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        queue.add(line);
+        LockSupport.unpark(printer);
+    }
+
+    private static void run() {
+        while (true) {
+            printQueued();
+            // Sleep until there's something new (or check again after a bit, just in case)
+            LockSupport.parkNanos(100_000_000L);
+        }
+    }
+
+    private static void printQueued() {
+        String line;
+        while ((line = queue.poll()) != null) {
+            queued.decrementAndGet();
+            System.out.println(line);
+        }
+    }
+
+    // Prints everything that's waiting right now, on this thread. Call before the program exits,
+    // otherwise the last few lines might never show up
+    public static void flush() {
+        printQueued();
+        System.out.flush();
+    }
+}
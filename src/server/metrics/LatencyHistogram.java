@@ -0,0 +1,83 @@
+package server.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Counts how long things take, so we can ask questions like "how slow were the slowest 1% of pings?"
+// Instead of saving every single time, it sorts them into buckets. Small times get small buckets and big
+// times get big buckets (every bucket is about 6% wide), which keeps it accurate at any scale with fixed memory.
+// (This is the same idea as an HDR histogram.) Any thread can record at once, no locking
+public class LatencyHistogram {
+
+    // Each power of 2 is split into 2^subBucketBits buckets
+    private static final int subBucketBits = 4;
+    private static final int subBucketCount = 1 << subBucketBits;
+    // Anything over 2^40 nanoseconds (about 18 minutes) lands in the last bucket
+    private static final int maxExponent = 40;
+    private static final int bucketCount = (maxExponent - subBucketBits + 2) * subBucketCount;
+
+    private final AtomicLongArray counts = new AtomicLongArray(bucketCount);
+    private final AtomicLongArray totals = new AtomicLongArray(2);
+
+    // Records one time, in nanoseconds
+    public void record(long nanos) {
+        if (nanos < 0) { nanos = 0; }
+        counts.incrementAndGet(bucketOf(nanos));
+        totals.incrementAndGet(0);
+        totals.addAndGet(1, nanos);
+    }
+
+    public long getCount() {
+        return totals.get(0);
+    }
+
+    public long getMeanNanos() {
+        long count = totals.get(0);
+        return count == 0 ? 0 : totals.get(1) / count;
+    }
+
+    // The time that this fraction of recordings were at or under (0.5 is the median, 0.99 is the 99th percentile).
+    // It's the top of the bucket, so it can be slightly high, never low
+    public long getPercentileNanos(double fraction) {
+        long count = 0;
+        for (int i = 0; i < bucketCount; i++) { count += counts.get(i); }
+        if (count == 0) { return 0; }
+        long target = Math.max(1, (long) Math.ceil(count * fraction));
+        long seen = 0;
+        for (int i = 0; i < bucketCount; i++) {
+            seen += counts.get(i);
+            if (seen >= target) { return upperBoundOf(i); }
+        }
+        return upperBoundOf(bucketCount - 1);
+    }
+
+    public void reset() {
+        for (int i = 0; i < bucketCount; i++) { counts.set(i, 0); }
+        totals.set(0, 0);
+        totals.set(1, 0);
+    }
+
+    private static int bucketOf(long value) {
+        // Small values just get a bucket each
+        if (value < subBucketCount) { return (int) value; }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > maxExponent) { return bucketCount - 1; }
+        // The next few bits under the top one pick the bucket within this power of 2
+        int sub = (int) ((value >>> (exponent - subBucketBits)) & (subBucketCount - 1));
+        return (exponent - subBucketBits + 1) * subBucketCount + sub;
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < subBucketCount) { return bucket; }
+        int exponent = bucket / subBucketCount + subBucketBits - 1;
+        int sub = bucket % subBucketCount;
+        long width = 1L << (exponent - subBucketBits);
+        return (1L << exponent) + (sub + 1) * width - 1;
+    }
+
+    // Short summary in milliseconds, like "n=120 mean=1.20ms p50=1.10ms p99=3.40ms p99.9=5.00ms"
+    public String summary() {
+        return String.format("n=%d mean=%.2fms p50=%.2fms p99=%.2fms p99.9=%.2fms",
+                getCount(), getMeanNanos() / 1e6, getPercentileNanos(0.5) / 1e6,
+                getPercentileNanos(0.99) / 1e6, getPercentileNanos(0.999) / 1e6);
+    }
+}
@@ -0,0 +1,206 @@
+package server.metrics;
+
+import server.io.messages.MessageType;
+import server.log.Log;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Keeps count of everything going through the server: messages and bytes in and out for every
+// MessageType, errors, timeouts, and how long pings take and how long messages wait before they're written.
+// Counting is lock-free and cheap enough to do for every single message.
+// The ConnectionHandler owns one of these, and every session reports into it
+public class Metrics {
+
+    // Counts per MessageType, indexed by ordinal. The extra slot at the end is for unknown types
+    private final LongAdder[] framesIn;
+    private final LongAdder[] framesOut;
+    private final LongAdder[] bytesIn;
+    private final LongAdder[] bytesOut;
+
+    private final LongAdder decodeErrors = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder suspects = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder kicked = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder sessionsOpened = new LongAdder();
+    private final LongAdder sessionsClosed = new LongAdder();
+
+    // Time from the server sending PING_REQUEST to the bot's PING_RESPONDED
+    private final LatencyHistogram pingRoundTrip = new LatencyHistogram();
+    // Time from a message being queued for a bot to it actually being written to the socket.
+    // Nothing acknowledges commands, so this is as far as we can follow one
+    private final LatencyHistogram queueToWire = new LatencyHistogram();
+
+    private volatile Thread reporter;
+
+    public Metrics() {
+        int slots = MessageType.count() + 1;
+        framesIn = newAdders(slots);
+        framesOut = newAdders(slots);
+        bytesIn = newAdders(slots);
+        bytesOut = newAdders(slots);
+    }
+
+    private static LongAdder[] newAdders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) { adders[i] = new LongAdder(); }
+        return adders;
+    }
+
+    private static int slot(MessageType type) {
+        return type == null ? MessageType.count() : type.ordinal();
+    }
+
+    public SessionMetrics newSession(int sessionId) {
+        sessionsOpened.increment();
+        return new SessionMetrics(sessionId);
+    }
+
+    public void sessionClosed() {
+        sessionsClosed.increment();
+    }
+
+    public void frameIn(SessionMetrics session, MessageType type, int bytes) {
+        framesIn[slot(type)].increment();
+        bytesIn[slot(type)].add(bytes);
+        session.framesIn.increment();
+        session.bytesIn.add(bytes);
+    }
+
+    public void frameOut(SessionMetrics session, MessageType type, int bytes) {
+        framesOut[slot(type)].increment();
+        bytesOut[slot(type)].add(bytes);
+        session.framesOut.increment();
+        session.bytesOut.add(bytes);
+    }
+
+    public void decodeError(SessionMetrics session) {
+        decodeErrors.increment();
+        session.decodeErrors.increment();
+    }
+
+    // A message that was thrown out instead of sent (queue full, too big...)
+    public void dropped(SessionMetrics session) {
+        dropped.increment();
+        session.dropped.increment();
+    }
+
+    // A session closed because the bot didn't send anything for too long
+    public void timeout(SessionMetrics session) {
+        timeouts.increment();
+        session.timeouts.increment();
+    }
+
+    // A bot went quiet long enough for the heartbeat to get worried (its ping timed out)
+    public void suspect(SessionMetrics session) {
+        suspects.increment();
+        session.suspects.increment();
+    }
+
+    // A frame thrown out because the bot was sending too fast
+    public void throttled(SessionMetrics session) {
+        throttled.increment();
+        session.throttled.increment();
+    }
+
+    // A bot disconnected for sending too fast for too long
+    public void kicked() {
+        kicked.increment();
+    }
+
+    // A connection turned away because we already had as many sessions as we're allowed
+    public void rejected() {
+        rejected.increment();
+    }
+
+    public void pingRoundTrip(SessionMetrics session, long nanos) {
+        pingRoundTrip.record(nanos);
+        session.setLastPingNanos(nanos);
+    }
+
+    public void queueToWire(long nanos) {
+        queueToWire.record(nanos);
+    }
+
+    public long getFramesIn(MessageType type) { return framesIn[slot(type)].sum(); }
+
+    public long getFramesOut(MessageType type) { return framesOut[slot(type)].sum(); }
+
+    public long getBytesIn(MessageType type) { return bytesIn[slot(type)].sum(); }
+
+    public long getBytesOut(MessageType type) { return bytesOut[slot(type)].sum(); }
+
+    public long getDecodeErrors() { return decodeErrors.sum(); }
+
+    public long getDropped() { return dropped.sum(); }
+
+    public long getTimeouts() { return timeouts.sum(); }
+
+    public long getSuspects() { return suspects.sum(); }
+
+    public long getThrottled() { return throttled.sum(); }
+
+    public long getKicked() { return kicked.sum(); }
+
+    public long getRejected() { return rejected.sum(); }
+
+    public long getSessionsOpened() { return sessionsOpened.sum(); }
+
+    public long getSessionsClosed() { return sessionsClosed.sum(); }
+
+    public LatencyHistogram getPingRoundTrip() { return pingRoundTrip; }
+
+    public LatencyHistogram getQueueToWire() { return queueToWire; }
+
+    // Everything at once, as text. Good for dumping to the log
+    public String snapshot() {
+        StringBuilder builder = new StringBuilder("Metrics: sessions open=")
+                .append(getSessionsOpened() - getSessionsClosed())
+                .append(" opened=").append(getSessionsOpened())
+                .append(" timeouts=").append(getTimeouts())
+                .append(" suspects=").append(getSuspects())
+                .append(" rejected=").append(getRejected())
+                .append(" throttled=").append(getThrottled())
+                .append(" kicked=").append(getKicked())
+                .append(" decodeErrors=").append(getDecodeErrors())
+                .append(" dropped=").append(getDropped())
+                .append(" logDropped=").append(Log.getDropped());
+        MessageType[] types = MessageType.values();
+        for (int i = 0; i <= types.length; i++) {
+            long in = framesIn[i].sum();
+            long out = framesOut[i].sum();
+            if (in == 0 && out == 0) { continue; }
+            builder.append(System.lineSeparator()).append("  ").append(i < types.length ? types[i] : "UNKNOWN")
+                    .append(": in=").append(in).append(" (").append(bytesIn[i].sum()).append("B)")
+                    .append(" out=").append(out).append(" (").append(bytesOut[i].sum()).append("B)");
+        }
+        builder.append(System.lineSeparator()).append("  ping round trip: ").append(pingRoundTrip.summary());
+        builder.append(System.lineSeparator()).append("  queue to wire: ").append(queueToWire.summary());
+        return builder.toString();
+    }
+
+    // Logs a snapshot every so often, on its own background thread
+    public synchronized void startReporting(long periodMillis) {
+        if (reporter != null) { return; }
+        reporter = new Thread(() -> {
+            while (reporter != null) {
+                try {
+                    Thread.sleep(periodMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                Log.info(snapshot());
+            }
+        }, "MetricsReporter");
+        reporter.setDaemon(true);
+        reporter.start();
+    }
+
+    public synchronized void stopReporting() {
+        Thread thread = reporter;
+        reporter = null;
+        if (thread != null) { thread.interrupt(); }
+    }
+}
@@ -0,0 +1,56 @@
+package server.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Counters for a single session (bot). Each IO has one of these.
+// LongAdder spreads its count over a few slots when lots of threads add at once, so adding never waits
+public class SessionMetrics {
+    public final int sessionId;
+
+    final LongAdder framesIn = new LongAdder();
+    final LongAdder framesOut = new LongAdder();
+    final LongAdder bytesIn = new LongAdder();
+    final LongAdder bytesOut = new LongAdder();
+    final LongAdder decodeErrors = new LongAdder();
+    final LongAdder dropped = new LongAdder();
+    final LongAdder throttled = new LongAdder();
+    final LongAdder timeouts = new LongAdder();
+    // Pings the heartbeat gave up waiting for
+    final LongAdder suspects = new LongAdder();
+    // The last ping round trip we measured (-1 if there hasn't been one yet)
+    private volatile long lastPingNanos = -1;
+
+    public SessionMetrics(int sessionId) {
+        this.sessionId = sessionId;
+    }
+
+    public long getFramesIn() { return framesIn.sum(); }
+
+    public long getFramesOut() { return framesOut.sum(); }
+
+    public long getBytesIn() { return bytesIn.sum(); }
+
+    public long getBytesOut() { return bytesOut.sum(); }
+
+    public long getDecodeErrors() { return decodeErrors.sum(); }
+
+    public long getDropped() { return dropped.sum(); }
+
+    public long getThrottled() { return throttled.sum(); }
+
+    public long getTimeouts() { return timeouts.sum(); }
+
+    public long getSuspects() { return suspects.sum(); }
+
+    public long getLastPingNanos() { return lastPingNanos; }
+
+    void setLastPingNanos(long nanos) { lastPingNanos = nanos; }
+
+    @Override
+    public String toString() {
+        return "session " + sessionId + ": in=" + getFramesIn() + " (" + getBytesIn() + "B) out=" + getFramesOut()
+                + " (" + getBytesOut() + "B) errors=" + getDecodeErrors() + " dropped=" + getDropped()
+                + " throttled=" + getThrottled() + " timeouts=" + getTimeouts() + " suspects=" + getSuspects()
+                + (lastPingNanos >= 0 ? String.format(" ping=%.2fms", lastPingNanos / 1e6) : "");
+    }
+}
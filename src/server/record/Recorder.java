@@ -0,0 +1,258 @@
+package server.record;
+
+import server.io.messages.FrameFormat;
+import server.io.messages.Message;
+import server.io.messages.MessageHandler;
+import server.log.Log;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// Saves every message going in and out of every session to disk, so you can look through a match afterwards.
+// Files are memory-mapped: the OS makes the file look like a big chunk of memory, so "writing to the file"
+// is just putting bytes in memory, and the OS saves them to disk on its own time. No system call per message.
+// The recording is split into segment files of a fixed size. When one fills up we move on to the next,
+// and the oldest ones get deleted once there are more than maxSegments of them.
+//
+// Any thread can record at the same time without locks: each one grabs its own spot in the segment
+// by moving a counter up (compareAndSet, never past the end of the segment), then writes there. The length at the front of a record goes in last,
+// so a reader never sees half a record.
+//
+// Segment file:  [magic int][version int][created at, epoch nanos long][records...]
+// Record:        [length int][time, epoch nanos long][session int][direction byte][BINARY frame (no CRC)]
+// Records are padded to a multiple of 8 bytes. A length of 0 means there's nothing after it (yet)
+public class Recorder {
+
+    // Which way the message was going
+    public enum Direction { IN, OUT }
+
+    static final int magic = 0x4253544C;
+    static final int version = 1;
+    static final int segmentHeaderSize = 16;
+    static final int recordHeaderSize = 17;
+    static final String segmentPrefix = "segment-";
+    static final String segmentSuffix = ".rec";
+
+    // Lets the length be written with a "release": everything written before it is
+    // guaranteed to be visible to anyone who sees the length
+    static final VarHandle intHandle = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    private static class Segment {
+        private final MappedByteBuffer buffer;
+        // Where the next record goes. Only ever goes up, and never past segmentSize
+        private final AtomicInteger position = new AtomicInteger(segmentHeaderSize);
+
+        private Segment(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxSegments;
+
+    // The segment everyone's writing into
+    private final AtomicReference<Segment> current = new AtomicReference<>();
+    // The next segment, made ahead of time by the background thread.
+    // Creating and mapping a file is slow, so the threads recording messages should never have to do it
+    private final AtomicReference<Segment> spare = new AtomicReference<>();
+    private long nextSequence;
+
+    private final LongAdder recorded = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    // How many times the background thread couldn't make the next segment (full disk, permissions...)
+    private final LongAdder segmentFailures = new LongAdder();
+
+    // Record times are wall clock time, but worked out from System.nanoTime() (much cheaper and more precise)
+    private final long epochNanosBase = System.currentTimeMillis() * 1_000_000L;
+    private final long nanoTimeBase = System.nanoTime();
+
+    private volatile boolean running;
+    private Thread thread;
+
+    // segmentSize is how big each file is. Keeps the newest maxSegments of them (at least 2)
+    public Recorder(Path directory, int segmentSize, int maxSegments) throws IOException {
+        if (segmentSize <= segmentHeaderSize + recordHeaderSize) {
+            throw new IllegalArgumentException("segmentSize is too small");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = Math.max(2, maxSegments);
+        Files.createDirectories(directory);
+        // Pick up numbering after any recordings that are already there, so they aren't overwritten
+        List<Path> existing = RecordingReader.listSegments(directory);
+        nextSequence = existing.isEmpty() ? 0 : RecordingReader.sequenceOf(existing.get(existing.size() - 1)) + 1;
+        current.set(newSegment());
+        spare.set(newSegment());
+        deleteOldSegments();
+    }
+
+    // Starts the background thread that gets the next segment ready and deletes old ones
+    public void start() {
+        running = true;
+        thread = new Thread(this::run, "Recorder");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Saves a message. Never blocks: if there's no room (the next segment isn't ready yet), it's dropped and counted
+    public void record(int sessionId, Direction direction, Message message) {
+        // There's no way to encode a type we don't know
+        if (message.type == null) { return; }
+        int frameLength = MessageHandler.encodedLength(message, FrameFormat.BINARY, false);
+        int length = (recordHeaderSize + frameLength + 7) & ~7;
+        if (length > segmentSize - segmentHeaderSize) {
+            dropped.increment();
+            return;
+        }
+        long time = now();
+        Segment segment = current.get();
+        while (segment != null) {
+            int start = claim(segment, length);
+            if (start >= 0) {
+                write(segment.buffer, start, length, time, sessionId, direction, message);
+                recorded.increment();
+                return;
+            }
+            // Full. Move on to the next segment (or find out someone else already did)
+            segment = nextSegment(segment);
+        }
+        dropped.increment();
+    }
+
+    // Takes length bytes of the segment. Returns where they start, or -1 if they don't fit.
+    // A plain getAndAdd would keep pushing the position past the end while there's no spare,
+    // until it wrapped around and started handing out space that's already been written
+    private int claim(Segment segment, int length) {
+        int start;
+        do {
+            start = segment.position.get();
+            if (start + length > segmentSize) { return -1; }
+        } while (!segment.position.compareAndSet(start, start + length));
+        return start;
+    }
+
+    private void write(MappedByteBuffer buffer, int start, int length, long time, int sessionId,
+                       Direction direction, Message message) {
+        buffer.putLong(start + 4, time);
+        buffer.putInt(start + 12, sessionId);
+        buffer.put(start + 16, (byte) direction.ordinal());
+        MessageHandler.encodeAt(message, buffer, start + recordHeaderSize);
+        // Last, so the record only "exists" once it's completely written
+        intHandle.setRelease(buffer, start, length);
+    }
+
+    // Swaps in the spare segment once the current one is full. Whoever claims the spare does the swap,
+    // everyone else just picks up the new one. Returns null if there isn't a spare ready (the message is dropped
+    // right away, the thread recording it might be a bot's receive thread and has better things to do than wait)
+    private Segment nextSegment(Segment full) {
+        Segment now = current.get();
+        if (now != full) { return now; }
+        Segment next = spare.get();
+        if (next != null && spare.compareAndSet(next, null)) {
+            current.set(next);
+            // Get another one ready
+            LockSupport.unpark(thread);
+            return next;
+        }
+        // Either there's no spare, or someone else just took it (and has probably swapped it in by now)
+        now = current.get();
+        return now != full ? now : null;
+    }
+
+    // Nanoseconds since 1970, like System.currentTimeMillis() but finer
+    public long now() {
+        return epochNanosBase + (System.nanoTime() - nanoTimeBase);
+    }
+
+    public long getRecorded() {
+        return recorded.sum();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getSegmentFailures() {
+        return segmentFailures.sum();
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    private void run() {
+        // Only the first failure in a row is logged, it's retried every time around
+        boolean failing = false;
+        while (running) {
+            if (spare.get() == null) {
+                try {
+                    spare.set(newSegment());
+                    if (failing) { Log.info("Recording segments are being created again"); }
+                    failing = false;
+                } catch (IOException | RuntimeException e) {
+                    segmentFailures.increment();
+                    if (!failing) { Log.error("Error creating recording segment! Messages are dropped until it works", e); }
+                    failing = true;
+                }
+                try {
+                    deleteOldSegments();
+                } catch (IOException e) {
+                    Log.error("Error deleting old recording segments!", e);
+                }
+            }
+            // Woken up early when the spare gets used
+            LockSupport.parkNanos(this, 100_000_000L);
+        }
+    }
+
+    // Creates the next segment file and maps it into memory
+    private Segment newSegment() throws IOException {
+        Path path = directory.resolve(RecordingReader.segmentName(nextSequence++));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // The mapping keeps working after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            buffer.putInt(0, magic);
+            buffer.putInt(4, version);
+            buffer.putLong(8, now());
+            return new Segment(buffer);
+        }
+    }
+
+    // Deletes the oldest segments until there are only maxSegments left
+    private void deleteOldSegments() throws IOException {
+        List<Path> segments = RecordingReader.listSegments(directory);
+        for (int i = 0; i < segments.size() - maxSegments; i++) {
+            Files.deleteIfExists(segments.get(i));
+        }
+    }
+
+    // Makes sure everything recorded so far is actually on disk
+    public void flush() {
+        Segment segment = current.get();
+        if (segment != null) { segment.buffer.force(); }
+    }
+
+    // Stops the background thread and saves everything to disk. Anything recorded after this is dropped
+    public void close() {
+        running = false;
+        if (thread != null) { LockSupport.unpark(thread); }
+        Segment segment = current.getAndSet(null);
+        if (segment != null) { segment.buffer.force(); }
+        Log.info("Recorder closed (" + getRecorded() + " recorded, " + getDropped() + " dropped, "
+                + getSegmentFailures() + " segment failures)");
+    }
+}
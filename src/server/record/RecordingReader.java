@@ -0,0 +1,144 @@
+package server.record;
+
+import server.io.messages.FrameFormat;
+import server.io.messages.Message;
+import server.io.messages.MessageHandler;
+import server.log.Log;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+// Reads back what a Recorder saved. Works on a finished recording or one that's still being written
+// (you just won't see records that haven't been fully written yet)
+public class RecordingReader {
+
+    // Pass this as the session to get every session
+    public static final int allSessions = -1;
+    // Biggest frame we'll believe is in a record (the same as the biggest message IO takes in)
+    private static final int maxFrameSize = 1024 * 1024;
+
+    // Gets told about each record. The message is reused for the next record, so copy anything you want to keep
+    public interface RecordVisitor {
+        void onRecord(long timeNanos, int sessionId, Recorder.Direction direction, Message message);
+    }
+
+    private final Path directory;
+
+    public RecordingReader(Path directory) {
+        this.directory = directory;
+    }
+
+    // Goes through every record from fromNanos (inclusive) to toNanos (exclusive), both in nanoseconds since 1970,
+    // for one session (or allSessions). Records come out in the order they were saved. Returns how many matched.
+    // Throws if a record doesn't make sense (the file got damaged), saying which segment and where
+    public long read(long fromNanos, long toNanos, int sessionId, RecordVisitor visitor) throws IOException {
+        Message message = MessageHandler.construct(null);
+        Recorder.Direction[] directions = Recorder.Direction.values();
+        long matched = 0;
+        for (Path path : listSegments(directory)) {
+            MappedByteBuffer buffer = map(path);
+            if (buffer == null) { continue; }
+            // Every record in a segment is newer than the segment itself, and so is every later segment
+            if (buffer.getLong(8) >= toNanos) { break; }
+            int position = Recorder.segmentHeaderSize;
+            while (position + Recorder.recordHeaderSize <= buffer.capacity()) {
+                int length = (int) Recorder.intHandle.getAcquire(buffer, position);
+                // Nothing (finished) after this. A record's length only goes in once the rest of it is written,
+                // so anything that IS there has to make sense
+                if (length == 0) { break; }
+                int recordEnd = position + length;
+                if (length < Recorder.recordHeaderSize + 2 || recordEnd < 0 || recordEnd > buffer.capacity()) {
+                    throw corrupt(path, position, "record length " + length + " doesn't fit in the segment");
+                }
+                long time = buffer.getLong(position + 4);
+                int session = buffer.getInt(position + 12);
+                if (time >= fromNanos && time < toNanos && (sessionId == allSessions || session == sessionId)) {
+                    int direction = buffer.get(position + 16);
+                    if (direction < 0 || direction >= directions.length) {
+                        throw corrupt(path, position, "unknown direction " + direction);
+                    }
+                    // Skip the frame's own length to get to the type and values
+                    int frameStart = position + Recorder.recordHeaderSize;
+                    int bodyLength = 0;
+                    int shift = 0;
+                    byte b;
+                    do {
+                        if (shift == 35 || frameStart >= recordEnd) {
+                            throw corrupt(path, position, "the frame's length runs past the record");
+                        }
+                        b = buffer.get(frameStart++);
+                        bodyLength |= (b & 0x7F) << shift;
+                        shift += 7;
+                    } while (b < 0);
+                    if (bodyLength <= 0 || bodyLength > maxFrameSize || bodyLength > recordEnd - frameStart) {
+                        throw corrupt(path, position, "frame length " + bodyLength + " doesn't fit in the record");
+                    }
+                    if (!MessageHandler.decodeInto(buffer, frameStart, frameStart + bodyLength, message,
+                            FrameFormat.BINARY, false)) {
+                        throw corrupt(path, position, "the frame's values are garbled");
+                    }
+                    visitor.onRecord(time, session, directions[direction], message);
+                    matched++;
+                }
+                position = recordEnd;
+            }
+        }
+        return matched;
+    }
+
+    // Every record, from every session
+    public long readAll(RecordVisitor visitor) throws IOException {
+        return read(Long.MIN_VALUE, Long.MAX_VALUE, allSessions, visitor);
+    }
+
+    private static IOException corrupt(Path path, int position, String problem) {
+        return new IOException("Recording " + path + " is damaged at byte " + position + ": " + problem);
+    }
+
+    // Maps a segment to read it. Returns null if it isn't a recording segment
+    private static MappedByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.capacity() < Recorder.segmentHeaderSize || buffer.getInt(0) != Recorder.magic
+                    || buffer.getInt(4) != Recorder.version) {
+                Log.info("Skipping " + path + ", it isn't a recording segment");
+                return null;
+            }
+            return buffer;
+        }
+    }
+
+    // All the segment files in the directory, oldest first
+    static List<Path> listSegments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(directory)) { return segments; }
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(path -> sequenceOf(path) >= 0).forEach(segments::add);
+        }
+        // The numbers are zero-padded, so sorting by name sorts by age
+        segments.sort(null);
+        return segments;
+    }
+
+    static String segmentName(long sequence) {
+        return String.format("%s%010d%s", Recorder.segmentPrefix, sequence, Recorder.segmentSuffix);
+    }
+
+    // The segment's number, or -1 if it isn't named like a segment
+    static long sequenceOf(Path path) {
+        String name = path.getFileName().toString();
+        if (!name.startsWith(Recorder.segmentPrefix) || !name.endsWith(Recorder.segmentSuffix)) { return -1; }
+        try {
+            return Long.parseLong(name.substring(Recorder.segmentPrefix.length(), name.length() - Recorder.segmentSuffix.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
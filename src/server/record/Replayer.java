@@ -0,0 +1,410 @@
+package server.record;
+
+import server.io.FrameDecoder;
+import server.io.messages.FrameFormat;
+import server.io.messages.Message;
+import server.io.messages.MessageHandler;
+import server.io.messages.MessageType;
+import server.log.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// Plays a recording back over real connections, so a match (or a bug) can be re-run exactly.
+// As the BOT, it connects to a server and sends what the bots sent (IN), then checks the server's
+// answers against what the server sent back then (OUT). As the SERVER, it's the other way around.
+// Playback can be at the original timing, N times faster, or as fast as possible. Gaps are kept,
+// so timeouts happen just like they did the first time.
+// Anything that comes back different from the recording counts as a divergence. After one, the replayer looks
+// a little way ahead in the recording to line back up, so one lost (or extra) message shows up as one
+// divergence, instead of making everything after it look wrong
+public class Replayer {
+
+    public enum Side {
+        // Connects to a server and sends the recorded IN messages
+        BOT,
+        // Accepts a bot's connection and sends the recorded OUT messages
+        SERVER
+    }
+
+    // One recorded message
+    public static class Record {
+        public final long timeNanos;
+        public final Recorder.Direction direction;
+        public final Message message;
+
+        public Record(long timeNanos, Recorder.Direction direction, Message message) {
+            this.timeNanos = timeNanos;
+            this.direction = direction;
+            this.message = message;
+        }
+    }
+
+    // Gives the replayer a connection for each recorded session
+    public interface ChannelSource {
+        SocketChannel open(int sessionId) throws IOException;
+    }
+
+    // How the playback went. Added up over every session
+    public static class Report {
+        public long sent;
+        public long received;
+        // Received messages that matched the recording
+        public long matched;
+        // Received, but different from what was recorded
+        public long diverged;
+        // Recorded, but never came back
+        public long missing;
+        // Came back, but there was nothing like it in the recording
+        public long extra;
+        public long elapsedNanos;
+        // What the first divergence was (and when it happened, System.nanoTime), or null if there weren't any
+        public String firstDivergence;
+        public long firstDivergenceAt;
+
+        // Everything that didn't go like the recording
+        public long getDivergences() {
+            return diverged + missing + extra;
+        }
+
+        private synchronized void add(Report other) {
+            sent += other.sent;
+            received += other.received;
+            matched += other.matched;
+            diverged += other.diverged;
+            missing += other.missing;
+            extra += other.extra;
+            if (other.firstDivergence != null
+                    && (firstDivergence == null || other.firstDivergenceAt - firstDivergenceAt < 0)) {
+                firstDivergence = other.firstDivergence;
+                firstDivergenceAt = other.firstDivergenceAt;
+            }
+        }
+
+        public double getMessagesPerSecond() {
+            return elapsedNanos == 0 ? 0 : (sent + received) * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            String result = String.format("Replay: sent=%d received=%d matched=%d diverged=%d missing=%d extra=%d in %.1fms (%.0f messages/s)",
+                    sent, received, matched, diverged, missing, extra, elapsedNanos / 1e6, getMessagesPerSecond());
+            if (firstDivergence == null) { return result; }
+            return result + ". " + getDivergences() + " divergences, the first: " + firstDivergence;
+        }
+    }
+
+    // Only the first few divergences per session get logged, the rest are just counted
+    private static final int maxLoggedDivergences = 10;
+    // How far ahead in the recording to look for a message that didn't match, to line back up after a divergence
+    private static final int resyncWindow = 32;
+
+    private final Side side;
+    // 1 is the original timing, 2 is twice as fast... 0 means as fast as possible
+    private final double speed;
+    // How long to wait for answers after the last message goes out
+    private final long graceMillis;
+
+    public Replayer(Side side, double speed, long graceMillis) {
+        this.side = side;
+        this.speed = speed;
+        this.graceMillis = graceMillis;
+    }
+
+    // Reads a recording, split up by session. Each session's records are in the order they were saved
+    public static Map<Integer, List<Record>> load(RecordingReader reader, long fromNanos, long toNanos, int sessionId)
+            throws IOException {
+        Map<Integer, List<Record>> sessions = new TreeMap<>();
+        reader.read(fromNanos, toNanos, sessionId, (time, session, direction, message) -> {
+            Message copy = MessageHandler.construct(message.type);
+            copy.setValueCount(message.valueCount);
+            if (message.valueCount > 0) { System.arraycopy(message.values, 0, copy.values, 0, message.valueCount); }
+            sessions.computeIfAbsent(session, id -> new ArrayList<>()).add(new Record(time, direction, copy));
+        });
+        return sessions;
+    }
+
+    // Plays every session at once, each on its own thread and its own connection.
+    // Sessions start at the same point in time relative to each other as they did originally
+    public Report replay(Map<Integer, List<Record>> sessions, ChannelSource channels) throws InterruptedException {
+        Report total = new Report();
+        long baseTime = Long.MAX_VALUE;
+        for (List<Record> records : sessions.values()) {
+            if (!records.isEmpty()) { baseTime = Math.min(baseTime, records.get(0).timeNanos); }
+        }
+        long startNanos = System.nanoTime();
+        List<Thread> threads = new ArrayList<>();
+        for (Map.Entry<Integer, List<Record>> session : sessions.entrySet()) {
+            long base = baseTime;
+            Thread thread = new Thread(() -> {
+                Report report = replaySession(session.getKey(), session.getValue(), channels, base, startNanos);
+                total.add(report);
+            }, "Replay-" + session.getKey());
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) { thread.join(); }
+        total.elapsedNanos = System.nanoTime() - startNanos;
+        return total;
+    }
+
+    private Report replaySession(int sessionId, List<Record> records, ChannelSource channels, long baseTime, long startNanos) {
+        Report report = new Report();
+        Recorder.Direction sendDirection = side == Side.BOT ? Recorder.Direction.IN : Recorder.Direction.OUT;
+        List<Message> expected = new ArrayList<>();
+        for (Record record : records) {
+            if (record.direction != sendDirection) { expected.add(record.message); }
+        }
+        if (records.isEmpty()) { return report; }
+        // Connect when the session first showed up in the recording
+        waitUntil(records.get(0).timeNanos, baseTime, startNanos);
+        SocketChannel channel;
+        try {
+            channel = channels.open(sessionId);
+            channel.socket().setTcpNoDelay(true);
+        } catch (IOException e) {
+            Log.error("Error opening replay connection (session " + sessionId + ")!", e);
+            report.missing = expected.size();
+            return report;
+        }
+        Connection connection = new Connection(sessionId, channel, expected, report);
+        Thread receiver = new Thread(connection::receive, "ReplayReceive-" + sessionId);
+        receiver.start();
+        try {
+            for (Record record : records) {
+                if (record.direction != sendDirection) { continue; }
+                waitUntil(record.timeNanos, baseTime, startNanos);
+                connection.send(record.message);
+                report.sent++;
+            }
+            // Give the other side a moment to answer everything
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(graceMillis);
+            while (connection.receivedCount() < expected.size() && System.nanoTime() < deadline && channel.isOpen()) {
+                LockSupport.parkNanos(1_000_000L);
+            }
+        } catch (IOException e) {
+            Log.info("Replay connection closed early (session " + sessionId + ", " + e.getMessage() + ")");
+        }
+        try {
+            channel.close();
+            receiver.join();
+        } catch (IOException e) {
+            Log.error("Error closing replay connection!", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        connection.finish();
+        return report;
+    }
+
+    // Sleeps until the moment this record should go out (scaled by the speed)
+    private void waitUntil(long recordTime, long baseTime, long startNanos) {
+        if (speed <= 0) { return; }
+        long target = startNanos + (long) ((recordTime - baseTime) / speed);
+        long sleep;
+        while ((sleep = target - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, sleep);
+        }
+    }
+
+    // Both ends of one replayed session: writing the recorded messages, and checking what comes back
+    private class Connection {
+        private final int sessionId;
+        private final SocketChannel channel;
+        private final List<Message> expected;
+        private final Report report;
+        private final FrameDecoder decoder = new FrameDecoder(8 * 1024, 1024 * 1024);
+        private final Message received = MessageHandler.construct(null);
+        private ByteBuffer sendBuffer = ByteBuffer.allocate(1024);
+
+        // What we're writing in, and what we're reading. They switch after the handshake, same as the real thing
+        private volatile FrameFormat sendFormat = FrameFormat.LEGACY;
+        private volatile boolean sendCrc;
+        private boolean receiveCrc;
+        private volatile boolean accepted;
+        // Whether we've sent the accept answering the handshake (only that one goes out in LEGACY)
+        private boolean acceptSent;
+        // Only touched by the receive thread until it's done
+        private int nextExpected;
+        private volatile int receivedCount;
+        private int logged;
+
+        private Connection(int sessionId, SocketChannel channel, List<Message> expected, Report report) {
+            this.sessionId = sessionId;
+            this.channel = channel;
+            this.expected = expected;
+            this.report = report;
+        }
+
+        private int receivedCount() {
+            return receivedCount;
+        }
+
+        private void send(Message message) throws IOException {
+            // The accept answering the handshake goes out in LEGACY, since the bot hasn't switched yet
+            boolean accept = message.type == MessageType.HANDSHAKE_ACCEPTED && !acceptSent;
+            if (accept) { acceptSent = true; }
+            FrameFormat format = accept ? FrameFormat.LEGACY : sendFormat;
+            int length = MessageHandler.encodedLength(message, format, sendCrc);
+            if (sendBuffer.capacity() < length) { sendBuffer = ByteBuffer.allocate(length); }
+            sendBuffer.clear();
+            MessageHandler.encode(message, sendBuffer, format, sendCrc);
+            sendBuffer.flip();
+            while (sendBuffer.hasRemaining()) { channel.write(sendBuffer); }
+            if (accept && isBinary(message)) {
+                sendFormat = FrameFormat.BINARY;
+                sendCrc = hasCrc(message);
+            }
+            if (message.type == MessageType.HANDSHAKE_REQUEST && isBinary(message)) {
+                // A real bot waits to hear back before switching to BINARY, so we do too
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(graceMillis);
+                while (!accepted && System.nanoTime() < deadline && channel.isOpen()) {
+                    LockSupport.parkNanos(100_000L);
+                }
+            }
+        }
+
+        private void receive() {
+            try {
+                while (decoder.readFrom(channel) >= 0) {
+                    decoder.drain(this::onFrame);
+                }
+            } catch (IOException e) {
+                // Closed once we're done, that's expected
+            }
+        }
+
+        private void onFrame(ByteBuffer buffer, int start, int end) {
+            FrameFormat format = decoder.getFormat();
+            if (!MessageHandler.decodeInto(buffer, start, end, received, format, receiveCrc)) {
+                report.diverged++;
+                divergence("a corrupted message");
+                return;
+            }
+            receivedCount++;
+            report.received++;
+            // Follow the handshake, same as IO does
+            if (received.type == MessageType.HANDSHAKE_REQUEST && isBinary(received)) {
+                decoder.setFormat(FrameFormat.BINARY);
+                receiveCrc = hasCrc(received);
+            } else if (received.type == MessageType.HANDSHAKE_ACCEPTED) {
+                if (isBinary(received)) {
+                    decoder.setFormat(FrameFormat.BINARY);
+                    receiveCrc = hasCrc(received);
+                    sendCrc = receiveCrc;
+                    sendFormat = FrameFormat.BINARY;
+                }
+                accepted = true;
+            }
+            if (nextExpected >= expected.size()) {
+                report.extra++;
+                divergence(received + " (nothing else was recorded)");
+                return;
+            }
+            Message wanted = expected.get(nextExpected);
+            if (matches(wanted, received, format)) {
+                nextExpected++;
+                report.matched++;
+                return;
+            }
+            // Maybe some recorded messages never came. If this one shows up a little further on, line up there
+            int limit = Math.min(expected.size(), nextExpected + 1 + resyncWindow);
+            for (int i = nextExpected + 1; i < limit; i++) {
+                if (matches(expected.get(i), received, format)) {
+                    int skipped = i - nextExpected;
+                    report.missing += skipped;
+                    divergence(received + " at #" + i + ", after " + skipped
+                            + " recorded messages never came (the first was " + wanted + ")");
+                    nextExpected = i + 1;
+                    report.matched++;
+                    return;
+                }
+            }
+            if (received.type == wanted.type) {
+                // Same message, different values. Count it and move on together
+                nextExpected++;
+                report.diverged++;
+                divergence(received + " at #" + (nextExpected - 1) + ", recorded " + wanted);
+            } else {
+                // Nothing like it in the recording. Stay where we are, the next one might match
+                report.extra++;
+                divergence(received + " at #" + nextExpected + ", which wasn't recorded (expected " + wanted + ")");
+            }
+        }
+
+        // Remembers the first divergence for the report, and logs the first few
+        private void divergence(String what) {
+            if (report.firstDivergence == null) {
+                report.firstDivergence = "session " + sessionId + " got " + what;
+                report.firstDivergenceAt = System.nanoTime();
+            }
+            if (logged++ < maxLoggedDivergences) {
+                Log.info("Replay divergence (session " + sessionId + "): got " + what);
+            }
+        }
+
+        // Called once the receive thread is done
+        private void finish() {
+            report.missing += Math.max(0, expected.size() - nextExpected);
+        }
+    }
+
+    private static boolean isBinary(Message message) {
+        return message.valueCount >= 1 && message.values[0] == FrameFormat.BINARY_VERSION;
+    }
+
+    private static boolean hasCrc(Message message) {
+        return message.valueCount >= 2 && (message.values[1] & FrameFormat.FLAG_CRC) != 0;
+    }
+
+    // Same type and values. LEGACY squishes values into a byte, so only the bottom byte is compared for those
+    private static boolean matches(Message wanted, Message actual, FrameFormat format) {
+        if (wanted.type != actual.type || wanted.valueCount != actual.valueCount) { return false; }
+        int mask = format == FrameFormat.LEGACY ? 0xFF : -1;
+        for (int i = 0; i < wanted.valueCount; i++) {
+            if ((wanted.values[i] & mask) != (actual.values[i] & mask)) { return false; }
+        }
+        return true;
+    }
+
+    // java server.record.Replayer <recording folder> bot <host> <port> [speed] [session]
+    // java server.record.Replayer <recording folder> server <port> [speed] [session]
+    // Speed 1 is the original timing, 0 is as fast as possible
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 3) {
+            System.out.println("Usage: Replayer <folder> bot <host> <port> [speed] [session]");
+            System.out.println("       Replayer <folder> server <port> [speed] [session]");
+            return;
+        }
+        boolean bot = args[1].equals("bot");
+        int next = bot ? 4 : 3;
+        double speed = args.length > next ? Double.parseDouble(args[next]) : 1;
+        int session = args.length > next + 1 ? Integer.parseInt(args[next + 1]) : RecordingReader.allSessions;
+        Map<Integer, List<Record>> sessions = load(new RecordingReader(Paths.get(args[0])),
+                Long.MIN_VALUE, Long.MAX_VALUE, session);
+        Log.info("Replaying " + sessions.size() + " sessions");
+
+        Report report;
+        if (bot) {
+            InetSocketAddress address = new InetSocketAddress(args[2], Integer.parseInt(args[3]));
+            report = new Replayer(Side.BOT, speed, 1000).replay(sessions, id -> SocketChannel.open(address));
+        } else {
+            try (ServerSocketChannel serverSocket = ServerSocketChannel.open()) {
+                serverSocket.bind(new InetSocketAddress(Integer.parseInt(args[2])));
+                report = new Replayer(Side.SERVER, speed, 1000).replay(sessions, id -> serverSocket.accept());
+            }
+        }
+        Log.info(report.toString());
+        Log.flush();
+    }
+}
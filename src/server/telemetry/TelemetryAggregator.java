@@ -0,0 +1,77 @@
+package server.telemetry;
+
+import server.io.IO;
+import server.io.dispatch.FrameHandler;
+import server.io.messages.Message;
+import server.io.messages.MessageType;
+import server.log.Log;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Keeps a rolling window of recent values for every session and every MessageType the bots send,
+// so autonomy code can ask for stats (like "average left encoder speed over the last second")
+// instead of only ever seeing one message at a time.
+// Register it with the Dispatcher (it's a FrameHandler). It's cheapest right on the receive thread, but it's safe
+// from any thread (a bot using UDP gets its datagrams handled on the UDP thread)
+public class TelemetryAggregator implements FrameHandler {
+
+    private final long windowMillis;
+    private final int capacity;
+    private final int maxValues;
+
+    // Each session's windows, indexed by MessageType ordinal. A window is only made once its type shows up
+    private final ConcurrentHashMap<Integer, AtomicReferenceArray<TelemetryWindow>> sessions = new ConcurrentHashMap<>();
+
+    // Every window looks back windowMillis and holds at most capacity samples of up to maxValues values each
+    public TelemetryAggregator(long windowMillis, int capacity, int maxValues) {
+        this.windowMillis = windowMillis;
+        this.capacity = capacity;
+        this.maxValues = maxValues;
+    }
+
+    @Override
+    public void handle(IO io, Message message) {
+        if (Log.isDebugEnabled()) { Log.debug("Session " + io.getSessionId() + ": " + message); }
+        // There's nothing to file an unknown type under
+        // Once a session starts closing its windows get thrown out, so don't make new ones
+        if (message.type == null || !io.isOpen()) { return; }
+        AtomicReferenceArray<TelemetryWindow> windows = sessions.get(io.getSessionId());
+        if (windows == null) {
+            windows = sessions.computeIfAbsent(io.getSessionId(), id -> new AtomicReferenceArray<>(MessageType.count()));
+        }
+        int index = message.type.ordinal();
+        TelemetryWindow window = windows.get(index);
+        if (window == null) {
+            // The receive thread and the UDP thread could both get here for the same session. Whoever's first wins
+            windows.compareAndSet(index, null, new TelemetryWindow(windowMillis, capacity, maxValues));
+            window = windows.get(index);
+        }
+        window.record(message, System.nanoTime());
+    }
+
+    // One session's window for one type, or null if that session hasn't sent that type (or is gone)
+    public TelemetryWindow getWindow(int sessionId, MessageType type) {
+        AtomicReferenceArray<TelemetryWindow> windows = sessions.get(sessionId);
+        return windows == null ? null : windows.get(type.ordinal());
+    }
+
+    // Fills in the snapshot with the stats right now. Returns false if there's no such window (nothing filled in)
+    public boolean snapshot(int sessionId, MessageType type, WindowSnapshot out) {
+        TelemetryWindow window = getWindow(sessionId, type);
+        if (window == null) { return false; }
+        window.snapshot(out, System.nanoTime());
+        return true;
+    }
+
+    // The sessions that have sent us something
+    public Set<Integer> getSessionIds() {
+        return sessions.keySet();
+    }
+
+    // Forgets a session's windows. Called when the session closes, so memory stays bounded
+    public void removeSession(int sessionId) {
+        sessions.remove(sessionId);
+    }
+}
@@ -0,0 +1,96 @@
+package server.telemetry;
+
+import server.io.messages.Message;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The last few hundred values one session sent for one MessageType, so you can ask things like
+// "what was the average over the last second?". Everything lives in plain arrays used as a ring
+// (the newest sample overwrites the oldest), so memory never grows no matter how fast messages come in.
+//
+// Usually one thread records into a window (the session's receive thread), but a bot using UDP has its datagrams
+// recorded from the UDP thread too, so any thread may record. Each one claims its own slot, and the samples
+// show up in the order they were claimed. Any number of threads can take snapshots at the same time without ever
+// making a writer wait. A snapshot copies what it needs, then checks no writer lapped it while it was copying,
+// and throws out anything that was overwritten
+public class TelemetryWindow {
+
+    private final long windowNanos;
+    private final int capacity;
+    private final int mask;
+    // The most values kept per message. Anything past this is ignored
+    private final int maxValues;
+
+    // Sample i lives in slot (i & mask)
+    private final long[] times;
+    private final int[] valueCounts;
+    // maxValues values per slot, one after the other
+    private final int[] values;
+    // How many slots writers have taken. A writer owns its slot from here until it bumps written
+    private final AtomicLong claimed = new AtomicLong();
+    // How many samples have ever been recorded. Bumped after a sample is completely written
+    private final AtomicLong written = new AtomicLong();
+
+    // windowMillis is how far back snapshots look. capacity (rounded up to a power of 2) is the most samples
+    // kept, so if messages come in faster than capacity per window, snapshots only cover the newest capacity of them
+    public TelemetryWindow(long windowMillis, int capacity, int maxValues) {
+        int size = 1;
+        while (size < capacity) { size <<= 1; }
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.capacity = size;
+        this.mask = size - 1;
+        this.maxValues = maxValues;
+        times = new long[size];
+        valueCounts = new int[size];
+        values = new int[size * maxValues];
+    }
+
+    // Adds a sample. Safe from any thread
+    public void record(Message message, long nowNanos) {
+        long sequence = claimed.getAndIncrement();
+        int slot = (int) (sequence & mask);
+        int count = Math.min(message.valueCount, maxValues);
+        times[slot] = nowNanos;
+        valueCounts[slot] = count;
+        if (count > 0) { System.arraycopy(message.values, 0, values, slot * maxValues, count); }
+        // Samples show up in order. If someone claimed the slot before ours and isn't done with it yet, let them
+        // finish first. They're only copying a few values (never waiting on anything), so this is quick unless
+        // they got swapped out halfway, and then we give up the CPU so they can finish. A single writer never waits
+        for (int spins = 0; written.get() != sequence; spins++) {
+            if (spins < 100) { Thread.onSpinWait(); } else { Thread.yield(); }
+        }
+        // "Release" makes sure the sample is all written before anyone can see the new count
+        written.lazySet(sequence + 1);
+    }
+
+    // How many samples have ever been recorded. If it hasn't changed since your last snapshot, nothing new came in
+    public long getSequence() {
+        return written.get();
+    }
+
+    // Fills in the snapshot with stats for every sample in the last windowMillis (as of nowNanos).
+    // Reuse the same snapshot object each time, so taking snapshots doesn't create garbage
+    public void snapshot(WindowSnapshot out, long nowNanos) {
+        out.prepare(capacity, maxValues);
+        long end = written.get();
+        long start = Math.max(0, end - capacity);
+        int copied = 0;
+        for (long sequence = start; sequence < end; sequence++) {
+            int slot = (int) (sequence & mask);
+            out.times[copied] = times[slot];
+            out.counts[copied] = valueCounts[slot];
+            System.arraycopy(values, slot * maxValues, out.values, copied * maxValues, maxValues);
+            copied++;
+        }
+        // Make sure all the copying above is done before checking whether a writer got in the way
+        VarHandle.loadLoadFence();
+        long after = claimed.get();
+        // While we copied, writers may have overwritten the oldest slots (and be halfway through the ones
+        // they've claimed). Anything older than this could be garbage, so skip it
+        long firstSafe = Math.max(start, after - capacity);
+        int skip = (int) Math.min(copied, firstSafe - start);
+        out.compute(skip, copied, end, nowNanos - windowNanos);
+    }
+}
@@ -0,0 +1,106 @@
+package server.telemetry;
+
+import java.util.Arrays;
+
+// Stats for one TelemetryWindow at one moment. Each value position in the message (values[0], values[1]...)
+// gets its own stats, so a message with left and right encoder counts has stats for each.
+// Make one and keep reusing it, the arrays inside are only created the first time
+public class WindowSnapshot {
+
+    // How many samples the window had ever recorded when this was taken
+    public long sequence;
+    // How many samples were in the time window
+    public int count;
+    // How many value positions have stats (the most values any sample had)
+    public int valueCount;
+    // When the oldest and newest samples in the window came in (System.nanoTime), 0 if there were none
+    public long oldestNanos;
+    public long newestNanos;
+
+    // Per value position. Only the first valueCount entries mean anything
+    public int[] min = new int[0];
+    public int[] max = new int[0];
+    public double[] mean = new double[0];
+    public int[] p50 = new int[0];
+    public int[] p90 = new int[0];
+    public int[] p99 = new int[0];
+
+    // Room to copy the samples into. Only used while the snapshot is being taken
+    long[] times = new long[0];
+    int[] counts = new int[0];
+    int[] values = new int[0];
+    private int[] sorted = new int[0];
+    private int stride;
+
+    // Makes sure there's room for a window this big
+    void prepare(int capacity, int maxValues) {
+        stride = maxValues;
+        if (times.length < capacity) {
+            times = new long[capacity];
+            counts = new int[capacity];
+            sorted = new int[capacity];
+        }
+        if (values.length < capacity * maxValues) { values = new int[capacity * maxValues]; }
+        if (min.length < maxValues) {
+            min = new int[maxValues];
+            max = new int[maxValues];
+            mean = new double[maxValues];
+            p50 = new int[maxValues];
+            p90 = new int[maxValues];
+            p99 = new int[maxValues];
+        }
+    }
+
+    // Works out the stats from the copied samples from index first to end, leaving out anything older than since
+    void compute(int first, int end, long sequence, long since) {
+        this.sequence = sequence;
+        count = 0;
+        valueCount = 0;
+        oldestNanos = 0;
+        newestNanos = 0;
+        // Samples are in the order they came in, so everything in the window is at the end
+        int start = end;
+        while (start > first && times[start - 1] - since >= 0) { start--; }
+        count = end - start;
+        if (count == 0) { return; }
+        oldestNanos = times[start];
+        newestNanos = times[end - 1];
+        for (int i = start; i < end; i++) { valueCount = Math.max(valueCount, counts[i]); }
+        for (int position = 0; position < valueCount; position++) {
+            int n = 0;
+            long sum = 0;
+            for (int i = start; i < end; i++) {
+                if (counts[i] > position) {
+                    int value = values[i * stride + position];
+                    sorted[n++] = value;
+                    sum += value;
+                }
+            }
+            Arrays.sort(sorted, 0, n);
+            min[position] = sorted[0];
+            max[position] = sorted[n - 1];
+            mean[position] = (double) sum / n;
+            p50[position] = sorted[percentileIndex(n, 0.50)];
+            p90[position] = sorted[percentileIndex(n, 0.90)];
+            p99[position] = sorted[percentileIndex(n, 0.99)];
+        }
+    }
+
+    private static int percentileIndex(int n, double fraction) {
+        int index = (int) Math.ceil(fraction * n) - 1;
+        return Math.max(0, Math.min(n - 1, index));
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("Window{samples=").append(count);
+        if (count > 1) {
+            builder.append(String.format(" over %.1fms", (newestNanos - oldestNanos) / 1e6));
+        }
+        for (int i = 0; i < valueCount; i++) {
+            builder.append(String.format(", [%d] min=%d max=%d mean=%.2f p50=%d p90=%d p99=%d",
+                    i, min[i], max[i], mean[i], p50[i], p90[i], p99[i]));
+        }
+        return builder.append('}').toString();
+    }
+}
@@ -0,0 +1,53 @@
+package server.timing;
+
+// Keeps a running guess of a connection's round trip time, and how much it jumps around,
+// the same way TCP does (RFC 6298). From those it works out a timeout: how long to wait for an answer
+// before it's safe to say something's wrong. A steady link gets a tight timeout, a jittery one gets a loose one.
+// Only one thread should call update(). Anyone can read
+public class RttEstimator {
+
+    // Smoothed round trip time and its variation, in nanoseconds. -1 until the first sample
+    private volatile long smoothedNanos = -1;
+    private volatile long variationNanos;
+    // Each lost ping doubles the timeout until an answer comes back (so a congested link doesn't get flagged over and over)
+    private volatile int backoff;
+
+    // Adds a measured round trip
+    public void update(long rttNanos) {
+        long smoothed = smoothedNanos;
+        if (smoothed < 0) {
+            variationNanos = rttNanos / 2;
+            smoothedNanos = rttNanos;
+        } else {
+            // New variation = 3/4 old + 1/4 how far off this sample was. New average = 7/8 old + 1/8 this sample
+            variationNanos = variationNanos - (variationNanos >> 2) + (Math.abs(smoothed - rttNanos) >> 2);
+            smoothedNanos = smoothed - (smoothed >> 3) + (rttNanos >> 3);
+        }
+        backoff = 0;
+    }
+
+    // A ping went unanswered for longer than the timeout
+    public void backoff() {
+        if (backoff < 6) { backoff++; }
+    }
+
+    public boolean hasSample() {
+        return smoothedNanos >= 0;
+    }
+
+    public long getSmoothedNanos() {
+        return smoothedNanos;
+    }
+
+    public long getVariationNanos() {
+        return variationNanos;
+    }
+
+    // How long to wait for an answer, between minNanos and maxNanos. Until there's a sample, it's maxNanos
+    public long getTimeoutNanos(long minNanos, long maxNanos) {
+        long smoothed = smoothedNanos;
+        if (smoothed < 0) { return maxNanos; }
+        long timeout = (smoothed + 4 * variationNanos) << backoff;
+        return Math.max(minNanos, Math.min(maxNanos, timeout));
+    }
+}
@@ -0,0 +1,192 @@
+package server.timing;
+
+import server.log.Log;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// A timer that can keep track of tons of timeouts at once, really cheaply.
+// Picture a clock face with a bunch of slots (buckets). The hand moves one slot every tick.
+// A timeout goes in the slot the hand will be pointing at when it's due, so adding one is just
+// dropping it in a slot, and each tick only looks at the timeouts in the slot the hand is on.
+// If a timeout is further away than one trip around the clock, it waits for a few extra laps (rounds).
+// It runs on its own thread, NOT the Swing/AWT thread, so it never fights with key presses
+public class TimingWheel {
+
+    // What to run when a timeout goes off. Runs on the wheel's thread, so keep it quick
+    public interface Task {
+        void run(Timeout timeout);
+    }
+
+    // A single scheduled task. Can be cancelled until it goes off
+    public static class Timeout {
+        private static final int WAITING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Task task;
+        // When it's due, in nanoseconds since the wheel started
+        private final long deadline;
+        private long remainingRounds;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+
+        // Each bucket is a linked list of timeouts, so removing one from the middle is quick
+        private Timeout next;
+        private Timeout prev;
+        private Bucket bucket;
+
+        private Timeout(Task task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        // Stops it from going off. Returns false if it already went off (or was already cancelled)
+        public boolean cancel() {
+            // The wheel thread notices cancelled timeouts and throws them out when it gets to them
+            return state.compareAndSet(WAITING, CANCELLED);
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+    }
+
+    // One slot on the clock face
+    private static class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        private void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        private Timeout remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if (timeout.prev != null) { timeout.prev.next = next; }
+            if (timeout.next != null) { timeout.next.prev = timeout.prev; }
+            if (timeout == head) { head = next; }
+            if (timeout == tail) { tail = timeout.prev; }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+            return next;
+        }
+    }
+
+    private final String name;
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    // The wheel size is always a power of 2, so "tick % size" can be done with a quick bit mask
+    private final int mask;
+    // Timeouts scheduled from other threads wait here until the wheel thread puts them in a bucket
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean running;
+    // Everything is measured from when the wheel was made
+    private final long startTime;
+    private Thread thread;
+    private long tick;
+
+    // tickMillis is how precise the timeouts are. wheelSize is how many slots (rounded up to a power of 2)
+    public TimingWheel(String name, long tickMillis, int wheelSize) {
+        if (tickMillis <= 0) { throw new IllegalArgumentException("tickMillis must be positive"); }
+        this.name = name;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int size = 1;
+        while (size < wheelSize) { size <<= 1; }
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) { wheel[i] = new Bucket(); }
+        mask = size - 1;
+        startTime = System.nanoTime();
+    }
+
+    public void start() {
+        running = true;
+        thread = new Thread(this::run, name);
+        // Don't keep the program alive just because the timer is running
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+        if (thread != null) { LockSupport.unpark(thread); }
+    }
+
+    // Runs the task after (about) delayMillis. It can go off up to one tick late, never early
+    public Timeout schedule(Task task, long delayMillis) {
+        long deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+        Timeout timeout = new Timeout(task, deadline);
+        pending.add(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        while (running) {
+            // Sleep until the next tick
+            long tickDeadline = (tick + 1) * tickNanos;
+            long sleep;
+            while (running && (sleep = tickDeadline - (System.nanoTime() - startTime)) > 0) {
+                LockSupport.parkNanos(this, sleep);
+            }
+            if (!running) { break; }
+
+            addPending();
+            expire(wheel[(int) (tick & mask)], tickDeadline);
+            tick++;
+        }
+    }
+
+    // Puts newly scheduled timeouts into the bucket the hand will be on when they're due
+    private void addPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.isCancelled()) { continue; }
+            long dueTick = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (dueTick - tick) / wheel.length;
+            // If it's already overdue, put it in the current bucket so it goes off this tick
+            long targetTick = Math.max(dueTick, tick);
+            wheel[(int) (targetTick & mask)].add(timeout);
+        }
+    }
+
+    // Goes off any timeouts in this bucket that are due
+    private void expire(Bucket bucket, long now) {
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            if (timeout.isCancelled()) {
+                // Cancelled. Just throw it out
+                timeout = bucket.remove(timeout);
+            } else if (timeout.remainingRounds <= 0 && timeout.deadline <= now) {
+                Timeout next = bucket.remove(timeout);
+                if (timeout.state.compareAndSet(Timeout.WAITING, Timeout.EXPIRED)) {
+                    try {
+                        timeout.task.run(timeout);
+                    } catch (RuntimeException e) {
+                        // One broken task shouldn't stop every other timeout
+                        Log.error("Error running timeout on " + name + "!", e);
+                    }
+                }
+                timeout = next;
+            } else {
+                // Not this lap. Check again next time around
+                timeout.remainingRounds--;
+                timeout = timeout.next;
+            }
+        }
+    }
+}